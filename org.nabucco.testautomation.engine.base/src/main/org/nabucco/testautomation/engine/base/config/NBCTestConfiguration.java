@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.config;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.nabucco.testautomation.engine.base.exception.NBCTestConfigurationException;
+
+/**
+ * NBCTestConfiguration
+ *
+ * Immutable, typed view of configuration properties. All values of the declared
+ * {@link NBCTestPropertyKey}s are parsed and validated once on creation, so reading a value is a
+ * plain map lookup without any further conversion.
+ *
+ * @author agent
+ */
+public final class NBCTestConfiguration {
+
+    private final Map<String, Object> values;
+
+    private NBCTestConfiguration(Map<String, Object> values) {
+        this.values = Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * Parses the given keys from the given properties, e.g. a {@link NBCTestProperties} instance
+     * or the snapshot of a {@link NBCTestPropertiesCache}.
+     *
+     * @param properties
+     *            the raw properties
+     * @param keys
+     *            the keys to parse
+     * @return the typed configuration
+     * @throws NBCTestConfigurationException
+     *             thrown, if a required property is missing or a value is invalid
+     */
+    public static NBCTestConfiguration create(Map<?, ?> properties, NBCTestPropertyKey<?>... keys)
+            throws NBCTestConfigurationException {
+
+        if (properties == null) {
+            throw new NBCTestConfigurationException("Properties must not be null");
+        }
+
+        Map<String, Object> values = new HashMap<String, Object>();
+
+        for (NBCTestPropertyKey<?> key : keys) {
+            Object raw = properties.get(key.getName());
+            String value = raw == null ? null : raw.toString().trim();
+
+            if (value == null || value.length() == 0) {
+                if (key.isRequired()) {
+                    throw new NBCTestConfigurationException("Required property '" + key.getName() + "' is not set.");
+                }
+                values.put(key.getName(), key.getDefaultValue());
+            } else {
+                values.put(key.getName(), key.parse(value));
+            }
+        }
+        return new NBCTestConfiguration(values);
+    }
+
+    /**
+     * Gets the parsed value of the given key.
+     *
+     * @param <T>
+     *            the value type
+     * @param key
+     *            the key
+     * @return the parsed value or the default value of the key, if not set
+     * @throws IllegalArgumentException
+     *             thrown, if the key was not declared on creation
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(NBCTestPropertyKey<T> key) {
+
+        if (!this.values.containsKey(key.getName())) {
+            throw new IllegalArgumentException("Property '" + key.getName() + "' was not declared.");
+        }
+        return (T) this.values.get(key.getName());
+    }
+
+    /**
+     * Gets all parsed values by property name.
+     *
+     * @return the unmodifiable map of values
+     */
+    public Map<String, Object> getAll() {
+        return this.values;
+    }
+
+    @Override
+    public String toString() {
+        return this.values.toString();
+    }
+
+}
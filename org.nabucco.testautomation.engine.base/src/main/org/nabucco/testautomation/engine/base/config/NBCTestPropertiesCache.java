@@ -0,0 +1,300 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.config;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.nabucco.framework.base.facade.datatype.logger.NabuccoLogger;
+import org.nabucco.framework.base.facade.datatype.logger.NabuccoLoggingFactory;
+import org.nabucco.testautomation.engine.base.exception.NBCTestConfigurationException;
+
+/**
+ * NBCTestPropertiesCache
+ *
+ * Caches the content of a property-file as an immutable snapshot. Reads are lock-free lookups in
+ * the current snapshot. A background timer polls the file for modifications and atomically swaps
+ * in a new snapshot when it has changed.
+ *
+ * @author agent
+ */
+public final class NBCTestPropertiesCache {
+
+    /**
+     * Default interval in milliseconds between two checks for modifications.
+     */
+    public static final long DEFAULT_RELOAD_INTERVAL = 5000;
+
+    private static final NabuccoLogger logger = NabuccoLoggingFactory.getInstance().getLogger(
+            NBCTestPropertiesCache.class);
+
+    private static final ConcurrentMap<File, NBCTestPropertiesCache> CACHES = new ConcurrentHashMap<File, NBCTestPropertiesCache>();
+
+    private static Timer timer;
+
+    private final File file;
+
+    private volatile Map<String, String> snapshot;
+
+    private volatile long lastModified;
+
+    private volatile long length;
+
+    private volatile boolean evicted;
+
+    private volatile boolean missing;
+
+    /**
+     * Creates a new cache and loads the initial snapshot.
+     *
+     * @param file
+     *            the property-file
+     * @throws IOException
+     *             thrown, if the file does not exist or cannot be read
+     */
+    private NBCTestPropertiesCache(File file) throws IOException {
+        this.file = file;
+        this.reload();
+    }
+
+    /**
+     * Gets the cache of the given property-file. The file is loaded and registered for hot reload
+     * on first access.
+     *
+     * @param file
+     *            the property-file
+     * @return the cache of the file
+     * @throws IOException
+     *             thrown, if the file does not exist or cannot be read
+     */
+    public static NBCTestPropertiesCache getCache(File file) throws IOException {
+        File key = file.getAbsoluteFile();
+        NBCTestPropertiesCache cache = CACHES.get(key);
+
+        if (cache == null) {
+            cache = new NBCTestPropertiesCache(key);
+            schedule(cache, DEFAULT_RELOAD_INTERVAL);
+
+            NBCTestPropertiesCache existing = CACHES.putIfAbsent(key, cache);
+
+            if (existing != null) {
+                cache.evicted = true;
+                return existing;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Removes the cache of the given property-file and stops watching it.
+     *
+     * @param file
+     *            the property-file
+     */
+    public static void evict(File file) {
+        NBCTestPropertiesCache cache = CACHES.remove(file.getAbsoluteFile());
+
+        if (cache != null) {
+            cache.evicted = true;
+        }
+    }
+
+    /**
+     * Schedules the modification check of the given cache. The timer is recreated, if its thread
+     * has died.
+     *
+     * @param cache
+     *            the cache to watch
+     * @param interval
+     *            the interval between two checks in milliseconds
+     */
+    private static synchronized void schedule(final NBCTestPropertiesCache cache, long interval) {
+
+        TimerTask task = new TimerTask() {
+
+            @Override
+            public void run() {
+
+                if (cache.evicted) {
+                    this.cancel();
+                    return;
+                }
+
+                // Keep the last snapshot of a deleted file and report the deletion only once
+                if (!cache.file.exists()) {
+                    if (!cache.missing) {
+                        cache.missing = true;
+                        logger.warning("Could not reload " + cache.file + ": file does not exist");
+                    }
+                    return;
+                }
+
+                if (cache.missing) {
+                    cache.missing = false;
+                    logger.info("Reloading " + cache.file + ": file exists again");
+                }
+
+                try {
+                    cache.reloadIfModified();
+                } catch (IOException e) {
+                    logger.warning("Could not reload " + cache.file + ": " + e.getMessage());
+                } catch (RuntimeException e) {
+                    // E.g. a malformed unicode escape while the file is being saved
+                    logger.warning("Could not reload " + cache.file + ": " + e);
+                }
+            }
+        };
+
+        if (timer != null) {
+            try {
+                timer.schedule(task, interval, interval);
+                return;
+            } catch (IllegalStateException e) {
+                logger.warning("Restarting reload timer: " + e.getMessage());
+            }
+        }
+
+        timer = new Timer("NBCTestPropertiesCache", true);
+        timer.schedule(task, interval, interval);
+    }
+
+    /**
+     * Gets the value of the given key from the current snapshot.
+     *
+     * @param key
+     *            the property key
+     * @return the trimmed value or null, if not set
+     */
+    public String getProperty(String key) {
+        return this.snapshot.get(key);
+    }
+
+    /**
+     * Gets the value of the given key from the current snapshot.
+     *
+     * @param key
+     *            the property key
+     * @param defaultValue
+     *            the value to return, if the key is not set
+     * @return the trimmed value or the default value, if not set
+     */
+    public String getProperty(String key, String defaultValue) {
+        String value = this.snapshot.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * Gets the current immutable snapshot of all properties.
+     *
+     * @return the unmodifiable snapshot
+     */
+    public Map<String, String> getSnapshot() {
+        return this.snapshot;
+    }
+
+    /**
+     * Creates a new {@link NBCTestProperties} instance with the content of the current snapshot.
+     *
+     * @return a modifiable copy of the snapshot
+     */
+    public NBCTestProperties getProperties() {
+        NBCTestProperties properties = new NBCTestProperties();
+        properties.putAll(this.snapshot);
+        return properties;
+    }
+
+    /**
+     * Parses the given keys from the current snapshot.
+     *
+     * @param keys
+     *            the keys to parse
+     * @return the typed configuration
+     * @throws NBCTestConfigurationException
+     *             thrown, if a required property is missing or a value is invalid
+     */
+    public NBCTestConfiguration getConfiguration(NBCTestPropertyKey<?>... keys) throws NBCTestConfigurationException {
+        return NBCTestConfiguration.create(this.snapshot, keys);
+    }
+
+    /**
+     * Reloads the property-file, if it was modified since the last load.
+     *
+     * @return true, if the snapshot was replaced, otherwise false
+     * @throws IOException
+     *             thrown, if the file cannot be read
+     */
+    public boolean reloadIfModified() throws IOException {
+
+        if (this.file.lastModified() == this.lastModified && this.file.length() == this.length) {
+            return false;
+        }
+        this.reload();
+        return true;
+    }
+
+    /**
+     * Loads the property-file and replaces the current snapshot.
+     *
+     * @throws IOException
+     *             thrown, if the file does not exist or cannot be read
+     */
+    public synchronized void reload() throws IOException {
+        long modified = this.file.lastModified();
+        long size = this.file.length();
+
+        NBCTestProperties properties = new NBCTestProperties();
+        Reader reader = new FileReader(this.file);
+
+        try {
+            properties.load(reader);
+        } finally {
+            reader.close();
+        }
+
+        Map<String, String> map = new HashMap<String, String>();
+        for (String key : properties.stringPropertyNames()) {
+            map.put(key, properties.getProperty(key));
+        }
+
+        this.snapshot = Collections.unmodifiableMap(map);
+        this.lastModified = modified;
+        this.length = size;
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Loaded " + map.size() + " properties from " + this.file);
+        }
+    }
+
+    /**
+     * Gets the cached property-file.
+     *
+     * @return the file
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.nabucco.testautomation.engine.base.exception.NBCTestConfigurationException;
+
+/**
+ * NBCTestPropertyKey
+ *
+ * Typed key of a configuration property. The key knows how to parse and validate the raw string
+ * value, so that a {@link NBCTestConfiguration} can convert all values once at load time. Keys
+ * created without a default value are required.
+ *
+ * @param <T>
+ *            the type of the parsed value
+ *
+ * @author agent
+ */
+public abstract class NBCTestPropertyKey<T> {
+
+    private static final String LIST_SEPARATOR = ",";
+
+    private final String name;
+
+    private final T defaultValue;
+
+    private final boolean required;
+
+    /**
+     * Creates a new key.
+     *
+     * @param name
+     *            the property name
+     * @param defaultValue
+     *            the value used if the property is not set
+     * @param required
+     *            true, if the property must be set
+     */
+    protected NBCTestPropertyKey(String name, T defaultValue, boolean required) {
+        if (name == null) {
+            throw new IllegalArgumentException("Property name must not be null");
+        }
+        this.name = name;
+        this.defaultValue = defaultValue;
+        this.required = required;
+    }
+
+    /**
+     * Parses the given trimmed, non-empty raw value.
+     *
+     * @param value
+     *            the raw value
+     * @return the parsed value
+     * @throws NBCTestConfigurationException
+     *             thrown, if the value is invalid
+     */
+    protected abstract T parse(String value) throws NBCTestConfigurationException;
+
+    /**
+     * @return the property name
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return the value used if the property is not set
+     */
+    public T getDefaultValue() {
+        return this.defaultValue;
+    }
+
+    /**
+     * @return true, if the property must be set
+     */
+    public boolean isRequired() {
+        return this.required;
+    }
+
+    /**
+     * Creates the exception for an invalid value of this key.
+     *
+     * @param value
+     *            the invalid value
+     * @param expected
+     *            a description of the expected format
+     * @return the exception to throw
+     */
+    protected NBCTestConfigurationException invalid(String value, String expected) {
+        return new NBCTestConfigurationException("Invalid value '"
+                + value + "' for property '" + this.name + "', expected " + expected + ".");
+    }
+
+    @Override
+    public String toString() {
+        return this.name;
+    }
+
+    /**
+     * Creates a required string key.
+     */
+    public static NBCTestPropertyKey<String> string(String name) {
+        return new StringKey(name, null, true);
+    }
+
+    /**
+     * Creates an optional string key.
+     */
+    public static NBCTestPropertyKey<String> string(String name, String defaultValue) {
+        return new StringKey(name, defaultValue, false);
+    }
+
+    /**
+     * Creates a required integer key.
+     */
+    public static NBCTestPropertyKey<Integer> integer(String name) {
+        return new IntegerKey(name, null, true);
+    }
+
+    /**
+     * Creates an optional integer key.
+     */
+    public static NBCTestPropertyKey<Integer> integer(String name, Integer defaultValue) {
+        return new IntegerKey(name, defaultValue, false);
+    }
+
+    /**
+     * Creates a required boolean key accepting 'true' and 'false'.
+     */
+    public static NBCTestPropertyKey<Boolean> bool(String name) {
+        return new BooleanKey(name, null, true);
+    }
+
+    /**
+     * Creates an optional boolean key accepting 'true' and 'false'.
+     */
+    public static NBCTestPropertyKey<Boolean> bool(String name, Boolean defaultValue) {
+        return new BooleanKey(name, defaultValue, false);
+    }
+
+    /**
+     * Creates a required duration key. Values are numbers with an optional unit of 'ms', 's', 'm'
+     * or 'h' and are converted to milliseconds. Numbers without unit are milliseconds.
+     */
+    public static NBCTestPropertyKey<Long> duration(String name) {
+        return new DurationKey(name, null, true);
+    }
+
+    /**
+     * Creates an optional duration key with a default value in milliseconds.
+     */
+    public static NBCTestPropertyKey<Long> duration(String name, Long defaultValue) {
+        return new DurationKey(name, defaultValue, false);
+    }
+
+    /**
+     * Creates a required size key. Values are numbers with an optional unit of 'k', 'm' or 'g'
+     * (optionally followed by 'b') and are converted to bytes. Numbers without unit are bytes.
+     */
+    public static NBCTestPropertyKey<Long> size(String name) {
+        return new SizeKey(name, null, true);
+    }
+
+    /**
+     * Creates an optional size key with a default value in bytes.
+     */
+    public static NBCTestPropertyKey<Long> size(String name, Long defaultValue) {
+        return new SizeKey(name, defaultValue, false);
+    }
+
+    /**
+     * Creates a required enum key. Values are matched case-insensitively against the constant
+     * names.
+     */
+    public static <E extends Enum<E>> NBCTestPropertyKey<E> enumeration(String name, Class<E> type) {
+        return new EnumKey<E>(name, type, null, true);
+    }
+
+    /**
+     * Creates an optional enum key.
+     */
+    public static <E extends Enum<E>> NBCTestPropertyKey<E> enumeration(String name, Class<E> type, E defaultValue) {
+        return new EnumKey<E>(name, type, defaultValue, false);
+    }
+
+    /**
+     * Creates an optional list key of comma separated, trimmed values. The default is an empty
+     * list.
+     */
+    public static NBCTestPropertyKey<List<String>> list(String name) {
+        return new ListKey(name, Collections.<String> emptyList(), false);
+    }
+
+    private static final class StringKey extends NBCTestPropertyKey<String> {
+
+        private StringKey(String name, String defaultValue, boolean required) {
+            super(name, defaultValue, required);
+        }
+
+        @Override
+        protected String parse(String value) {
+            return value;
+        }
+    }
+
+    private static final class IntegerKey extends NBCTestPropertyKey<Integer> {
+
+        private IntegerKey(String name, Integer defaultValue, boolean required) {
+            super(name, defaultValue, required);
+        }
+
+        @Override
+        protected Integer parse(String value) throws NBCTestConfigurationException {
+            try {
+                return Integer.valueOf(value);
+            } catch (NumberFormatException e) {
+                throw this.invalid(value, "an integer");
+            }
+        }
+    }
+
+    private static final class BooleanKey extends NBCTestPropertyKey<Boolean> {
+
+        private BooleanKey(String name, Boolean defaultValue, boolean required) {
+            super(name, defaultValue, required);
+        }
+
+        @Override
+        protected Boolean parse(String value) throws NBCTestConfigurationException {
+            if (value.equalsIgnoreCase(Boolean.TRUE.toString())) {
+                return Boolean.TRUE;
+            }
+            if (value.equalsIgnoreCase(Boolean.FALSE.toString())) {
+                return Boolean.FALSE;
+            }
+            throw this.invalid(value, "'true' or 'false'");
+        }
+    }
+
+    private static final class DurationKey extends NBCTestPropertyKey<Long> {
+
+        private DurationKey(String name, Long defaultValue, boolean required) {
+            super(name, defaultValue, required);
+        }
+
+        @Override
+        protected Long parse(String value) throws NBCTestConfigurationException {
+            String lower = value.toLowerCase(Locale.ENGLISH);
+            long factor = 1;
+            int unitLength = 0;
+
+            if (lower.endsWith("ms")) {
+                unitLength = 2;
+            } else if (lower.endsWith("s")) {
+                factor = 1000;
+                unitLength = 1;
+            } else if (lower.endsWith("m")) {
+                factor = 60 * 1000;
+                unitLength = 1;
+            } else if (lower.endsWith("h")) {
+                factor = 60 * 60 * 1000;
+                unitLength = 1;
+            }
+            return multiply(this, value, lower.substring(0, lower.length() - unitLength), factor,
+                    "a duration like '500ms', '10s', '5m' or '1h'");
+        }
+    }
+
+    private static final class SizeKey extends NBCTestPropertyKey<Long> {
+
+        private SizeKey(String name, Long defaultValue, boolean required) {
+            super(name, defaultValue, required);
+        }
+
+        @Override
+        protected Long parse(String value) throws NBCTestConfigurationException {
+            String lower = value.toLowerCase(Locale.ENGLISH);
+
+            if (lower.endsWith("b")) {
+                lower = lower.substring(0, lower.length() - 1);
+            }
+
+            long factor = 1;
+            int unitLength = 1;
+
+            if (lower.endsWith("k")) {
+                factor = 1024L;
+            } else if (lower.endsWith("m")) {
+                factor = 1024L * 1024L;
+            } else if (lower.endsWith("g")) {
+                factor = 1024L * 1024L * 1024L;
+            } else {
+                unitLength = 0;
+            }
+            return multiply(this, value, lower.substring(0, lower.length() - unitLength), factor,
+                    "a size like '512', '64k', '10mb' or '1g'");
+        }
+    }
+
+    private static final class EnumKey<E extends Enum<E>> extends NBCTestPropertyKey<E> {
+
+        private final Class<E> type;
+
+        private EnumKey(String name, Class<E> type, E defaultValue, boolean required) {
+            super(name, defaultValue, required);
+            this.type = type;
+        }
+
+        @Override
+        protected E parse(String value) throws NBCTestConfigurationException {
+            for (E constant : this.type.getEnumConstants()) {
+                if (constant.name().equalsIgnoreCase(value)) {
+                    return constant;
+                }
+            }
+            throw this.invalid(value, "one of " + Arrays.toString(this.type.getEnumConstants()));
+        }
+    }
+
+    private static final class ListKey extends NBCTestPropertyKey<List<String>> {
+
+        private ListKey(String name, List<String> defaultValue, boolean required) {
+            super(name, defaultValue, required);
+        }
+
+        @Override
+        protected List<String> parse(String value) {
+            List<String> list = new ArrayList<String>();
+
+            for (String element : value.split(LIST_SEPARATOR)) {
+                String trimmed = element.trim();
+                if (trimmed.length() > 0) {
+                    list.add(trimmed);
+                }
+            }
+            return Collections.unmodifiableList(list);
+        }
+    }
+
+    /**
+     * Parses a non-negative number and multiplies it by the given unit factor.
+     */
+    private static Long multiply(NBCTestPropertyKey<Long> key, String value, String number, long factor,
+            String expected) throws NBCTestConfigurationException {
+        try {
+            long parsed = Long.parseLong(number.trim());
+
+            if (parsed < 0 || parsed > Long.MAX_VALUE / factor) {
+                throw key.invalid(value, expected);
+            }
+            return Long.valueOf(parsed * factor);
+        } catch (NumberFormatException e) {
+            throw key.invalid(value, expected);
+        }
+    }
+
+}
@@ -0,0 +1,582 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.context;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.nabucco.framework.base.facade.datatype.logger.NabuccoLogger;
+import org.nabucco.framework.base.facade.datatype.logger.NabuccoLoggingFactory;
+import org.nabucco.testautomation.result.facade.datatype.TestResult;
+
+/**
+ * CheckpointJournal
+ * 
+ * Append-only, memory-mapped journal of {@link TestContext} checkpoints. Each checkpoint records
+ * the identifier of a completed TestConfigElement, the context changes since the previous
+ * checkpoint and the result of the completed element. The records are appended by a background
+ * thread, the execution thread only captures the context delta. After a crash, {@link #recover(File)}
+ * replays the journal, so that a run can be resumed after the last completed element.
+ * <p>
+ * Each record consists of its length, a CRC32 checksum and the serialized data. Reading stops at
+ * the first empty, incomplete or corrupt record.
+ * <p>
+ * By default a checkpoint only contains the properties put, merged or removed since the last
+ * checkpoint written successfully (see {@link TestContext#createSnapshot(long)}), so a failed write
+ * loses no changes. Properties modified in place, e.g. by setting the value of a property obtained
+ * from the context, are not part of the delta, so a recovered context may hold stale values for
+ * them. With {@link #setFullSnapshots(boolean)} each checkpoint captures the complete context
+ * instead. The last write failure is available by {@link #getFailure()}.
+ * <p>
+ * Once the journal has grown by {@link #COMPACT_THRESHOLD} bytes, the next checkpoint captures the
+ * complete context and the journal is compacted: the context changes of all earlier records are
+ * dropped, their element identifiers and results are kept.
+ * 
+ * @author agent
+ */
+public final class CheckpointJournal {
+
+    private static final NabuccoLogger logger = NabuccoLoggingFactory.getInstance().getLogger(
+            CheckpointJournal.class);
+
+    private static final int HEADER_SIZE = 12;
+
+    private static final int MAPPING_SIZE = 4 * 1024 * 1024;
+
+    private static final long CLOSE_TIMEOUT = 60;
+
+    /**
+     * Growth of the journal in bytes, after which it is compacted.
+     */
+    public static final long COMPACT_THRESHOLD = 16 * 1024 * 1024;
+
+    private static final String COMPACT_SUFFIX = ".compact";
+
+    private final File file;
+
+    private RandomAccessFile raf;
+
+    private FileChannel channel;
+
+    private final ExecutorService writer;
+
+    private MappedByteBuffer mapping;
+
+    private long mappingStart;
+
+    private volatile long position;
+
+    private volatile long compactedPosition;
+
+    private TestContext lastContext;
+
+    private long persistedVersion;
+
+    private volatile boolean fullSnapshots;
+
+    private volatile IOException failure;
+
+    /**
+     * Opens the journal in the given file. Existing valid records are kept, new checkpoints are
+     * appended after them.
+     * 
+     * @param file
+     *            the journal file
+     * @throws IOException
+     *             thrown, if the file cannot be opened
+     */
+    public CheckpointJournal(File file) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = this.raf.getChannel();
+        this.position = scan(this.channel, null);
+        this.compactedPosition = this.position;
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "CheckpointJournal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Records a checkpoint after the TestConfigElement with the given identifier was completed. The
+     * context changes since the last checkpoint written are captured on the calling thread, the
+     * result is serialized and written by the journal thread. The result must not be modified
+     * anymore.
+     * 
+     * @param ctx
+     *            the context after the completed element
+     * @param elementId
+     *            the identifier of the completed element
+     * @param result
+     *            the result of the completed element, may be null
+     * @throws IOException
+     *             thrown, if the context cannot be serialized
+     */
+    public synchronized void checkpoint(final TestContext ctx, String elementId, final TestResult result)
+            throws IOException {
+
+        final boolean compact = this.position - this.compactedPosition >= COMPACT_THRESHOLD;
+        long sinceVersion = ctx == this.lastContext && !this.fullSnapshots && !compact ? this.persistedVersion : 0;
+
+        if (ctx != this.lastContext) {
+            this.lastContext = ctx;
+            this.persistedVersion = 0;
+        }
+
+        final TestContextSnapshot snapshot = ctx.createSnapshot(sinceVersion);
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(buffer);
+        out.writeObject(elementId);
+        out.writeObject(snapshot);
+        out.flush();
+
+        this.writer.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    out.writeObject(result);
+                    out.close();
+
+                    long start = position;
+                    append(buffer.toByteArray());
+                    persisted(ctx, snapshot.getVersion());
+
+                    if (compact) {
+                        compact(start);
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                    logger.error(e, "Could not write checkpoint to " + file);
+                } catch (RuntimeException e) {
+                    failure = new IOException("Could not write checkpoint", e);
+                    logger.error(e, "Could not write checkpoint to " + file);
+                }
+            }
+        });
+    }
+
+    /**
+     * Advances the base of the next delta, once a checkpoint was written.
+     */
+    private synchronized void persisted(TestContext ctx, long version) {
+        if (ctx == this.lastContext) {
+            this.persistedVersion = Math.max(this.persistedVersion, version);
+        }
+    }
+
+    /**
+     * Gets the failure of the last checkpoint, which could not be written.
+     * 
+     * @return the failure or null, if all checkpoints were written
+     */
+    public IOException getFailure() {
+        return this.failure;
+    }
+
+    /**
+     * Sets whether each checkpoint captures the complete context instead of the changes since the
+     * last checkpoint written. Full snapshots also contain properties modified in place, at the cost
+     * of a larger journal.
+     * 
+     * @param fullSnapshots
+     *            true, to capture the complete context
+     */
+    public void setFullSnapshots(boolean fullSnapshots) {
+        this.fullSnapshots = fullSnapshots;
+    }
+
+    /**
+     * Appends a record to the journal. Called by the journal thread only.
+     * 
+     * @param data
+     *            the serialized record
+     * @throws IOException
+     *             thrown, if the record cannot be written
+     */
+    private void append(byte[] data) throws IOException {
+        int recordSize = HEADER_SIZE + data.length;
+
+        if (this.mapping == null || this.position + recordSize > this.mappingStart + this.mapping.capacity()) {
+            this.mappingStart = this.position;
+            this.mapping = this.channel.map(FileChannel.MapMode.READ_WRITE, this.mappingStart, Math.max(
+                    MAPPING_SIZE, recordSize + HEADER_SIZE));
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        this.mapping.position((int) (this.position - this.mappingStart));
+        this.mapping.putInt(data.length);
+        this.mapping.putLong(crc.getValue());
+        this.mapping.put(data);
+        this.mapping.force();
+        this.position += recordSize;
+    }
+
+    /**
+     * Rewrites the journal without the context changes of the records before the given position,
+     * where a complete snapshot was written. The compacted journal is written to a temporary file
+     * and replaces the journal only when complete. Called by the journal thread only.
+     * 
+     * @param fullSnapshotStart
+     *            the position of the record with the complete snapshot
+     */
+    private void compact(long fullSnapshotStart) {
+        File compacted = new File(this.file.getPath() + COMPACT_SUFFIX);
+        long end = this.position;
+
+        try {
+            RandomAccessFile target = new RandomAccessFile(compacted, "rw");
+
+            try {
+                target.setLength(0);
+                FileChannel targetChannel = target.getChannel();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                long readPosition = 0;
+                long writePosition = 0;
+
+                while (readPosition < end) {
+                    header.clear();
+                    readFully(this.channel, header, readPosition);
+                    header.flip();
+
+                    byte[] data = new byte[header.getInt()];
+                    readFully(this.channel, ByteBuffer.wrap(data), readPosition + HEADER_SIZE);
+                    readPosition += HEADER_SIZE + data.length;
+
+                    if (readPosition <= fullSnapshotStart) {
+                        data = stripSnapshot(data);
+                    }
+                    writePosition += writeRecord(targetChannel, writePosition, data);
+                }
+                targetChannel.force(true);
+            } finally {
+                target.close();
+            }
+
+            this.mapping = null;
+            this.channel.close();
+            this.raf.close();
+
+            if (!compacted.renameTo(this.file) && !(this.file.delete() && compacted.renameTo(this.file))) {
+                throw new IOException("Could not replace " + this.file + " by " + compacted);
+            }
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Compacted " + this.file + " from " + end + " to " + compacted.length() + " bytes");
+            }
+        } catch (IOException e) {
+            logger.warning("Could not compact checkpoint journal " + this.file + ": " + e.getMessage());
+
+            if (this.file.exists()) {
+                compacted.delete();
+            } else {
+                logger.error("Checkpoint journal " + this.file + " was left in " + compacted);
+            }
+        } finally {
+            this.reopen();
+        }
+    }
+
+    /**
+     * Opens the journal again after compaction and continues after its last record.
+     */
+    private void reopen() {
+        try {
+            if (!this.channel.isOpen()) {
+                this.raf = new RandomAccessFile(this.file, "rw");
+                this.channel = this.raf.getChannel();
+                this.position = scan(this.channel, null);
+            }
+            this.compactedPosition = this.position;
+        } catch (IOException e) {
+            this.failure = e;
+            logger.error(e, "Could not reopen checkpoint journal " + this.file);
+        }
+    }
+
+    /**
+     * Replaces the context changes of a record by null, keeping the element identifier and result.
+     */
+    private static byte[] stripSnapshot(byte[] data) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(buffer);
+
+        try {
+            out.writeObject(in.readObject());
+            in.readObject();
+            out.writeObject(null);
+            out.writeObject(in.readObject());
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Could not compact checkpoint record", e);
+        } finally {
+            in.close();
+        }
+        out.close();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Writes a record at the given position of a channel.
+     * 
+     * @return the size of the record
+     */
+    private static int writeRecord(FileChannel channel, long position, byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + data.length);
+        record.putInt(data.length);
+        record.putLong(crc.getValue());
+        record.put(data);
+        record.flip();
+
+        while (record.hasRemaining()) {
+            channel.write(record, position + record.position());
+        }
+        return record.limit();
+    }
+
+    /**
+     * Waits for all pending checkpoints and closes the journal.
+     * 
+     * @throws IOException
+     *             thrown, if the journal cannot be closed
+     */
+    public void close() throws IOException {
+        this.writer.shutdown();
+
+        try {
+            if (!this.writer.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS)) {
+                logger.warning("Pending checkpoints of " + this.file + " were not written in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        this.mapping = null;
+        this.channel.close();
+        this.raf.close();
+    }
+
+    /**
+     * Deletes the journal, e.g. after the run finished successfully.
+     * 
+     * @throws IOException
+     *             thrown, if the journal cannot be closed
+     */
+    public void delete() throws IOException {
+        this.close();
+
+        if (!this.file.delete()) {
+            this.file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Replays the journal in the given file.
+     * 
+     * @param file
+     *            the journal file
+     * @return the recovered state or null, if the journal does not exist or is empty
+     * @throws IOException
+     *             thrown, if the journal cannot be read
+     */
+    public static Recovery recover(File file) throws IOException {
+
+        if (!file.isFile() || file.length() == 0) {
+            return null;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            Recovery recovery = new Recovery();
+            scan(raf.getChannel(), recovery);
+            return recovery.getLastElementId() == null ? null : recovery;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads all valid records of a journal.
+     * 
+     * @param channel
+     *            the journal channel
+     * @param recovery
+     *            the recovery to replay the records into, null to only find the end of the journal
+     * @return the position after the last valid record
+     * @throws IOException
+     *             thrown, if the journal cannot be read
+     */
+    private static long scan(FileChannel channel, Recovery recovery) throws IOException {
+        long size = channel.size();
+
+        if (size == 0) {
+            return 0;
+        }
+
+        // Positioned reads, a single mapping of the whole journal is limited to 2 GB
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long position = 0;
+
+        while (size - position >= HEADER_SIZE) {
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+
+            int length = header.getInt();
+            long checksum = header.getLong();
+
+            if (length <= 0 || length > size - position - HEADER_SIZE) {
+                break;
+            }
+
+            byte[] data = new byte[length];
+            readFully(channel, ByteBuffer.wrap(data), position + HEADER_SIZE);
+
+            CRC32 crc = new CRC32();
+            crc.update(data);
+
+            if (crc.getValue() != checksum) {
+                logger.warning("Corrupt checkpoint record at position " + position);
+                break;
+            }
+
+            if (recovery != null) {
+                try {
+                    recovery.replay(data);
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Could not replay checkpoint record at position " + position, e);
+                }
+            }
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    /**
+     * Reads the given buffer completely from the given file position.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long offset = position;
+
+        while (buffer.hasRemaining()) {
+            int len = channel.read(buffer, offset);
+
+            if (len == -1) {
+                throw new IOException("Unexpected end of journal at position " + offset);
+            }
+            offset += len;
+        }
+    }
+
+    /**
+     * State recovered from a journal.
+     */
+    public static final class Recovery {
+
+        private TestContext context;
+
+        private final List<String> completedElementIds = new ArrayList<String>();
+
+        private final List<TestResult> results = new ArrayList<TestResult>();
+
+        private Recovery() {
+        }
+
+        private void replay(byte[] data) throws IOException, ClassNotFoundException {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+
+            try {
+                String elementId = (String) in.readObject();
+                TestContextSnapshot snapshot = (TestContextSnapshot) in.readObject();
+                TestResult result = (TestResult) in.readObject();
+
+                // Compacted records carry no context changes
+                if (snapshot != null) {
+                    if (this.context == null || !snapshot.isDelta()) {
+                        this.context = new TestContext();
+                    }
+                    snapshot.applyTo(this.context);
+                }
+                this.completedElementIds.add(elementId);
+
+                if (result != null) {
+                    this.results.add(result);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        /**
+         * @return the context as of the last checkpoint
+         */
+        public TestContext getContext() {
+            return this.context;
+        }
+
+        /**
+         * @return the identifiers of all completed elements in order of completion
+         */
+        public List<String> getCompletedElementIds() {
+            return Collections.unmodifiableList(this.completedElementIds);
+        }
+
+        /**
+         * @return the identifier of the last completed element
+         */
+        public String getLastElementId() {
+            return this.completedElementIds.isEmpty() ? null : this.completedElementIds.get(this.completedElementIds
+                    .size() - 1);
+        }
+
+        /**
+         * @return the results of the completed elements in order of completion
+         */
+        public List<TestResult> getResults() {
+            return Collections.unmodifiableList(this.results);
+        }
+    }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.context;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.nabucco.framework.base.facade.datatype.Name;
+
+/**
+ * PropertyKey
+ * 
+ * Canonical, interned key of a property name in the {@link TestContext}. Keys are pooled by their
+ * string value, have a precomputed hash code and compare by identity first. Dotted property paths
+ * are split once when the key is created.
+ * 
+ * @author agent
+ */
+public final class PropertyKey implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int MAX_POOL_SIZE = 65536;
+
+    private static final String REGEX_SPLITTER = "\\.";
+
+    private static final String SPLITTER = ".";
+
+    private static final PropertyKey NULL_KEY = new PropertyKey(null);
+
+    private static final ConcurrentMap<String, PropertyKey> POOL = new ConcurrentHashMap<String, PropertyKey>();
+
+    private final String value;
+
+    private final transient int hash;
+
+    private final transient String[] path;
+
+    private final transient PropertyKey root;
+
+    private PropertyKey(String value) {
+        this.value = value;
+        this.hash = value == null ? 0 : value.hashCode();
+
+        if (value != null && value.contains(SPLITTER)) {
+            this.path = value.split(REGEX_SPLITTER);
+            this.root = this.path.length > 0 ? valueOf(this.path[0]) : this;
+        } else {
+            this.path = null;
+            this.root = this;
+        }
+    }
+
+    /**
+     * Gets the canonical key of the given property name.
+     * 
+     * @param value
+     *            the property name
+     * @return the interned key
+     */
+    public static PropertyKey valueOf(String value) {
+
+        if (value == null) {
+            return NULL_KEY;
+        }
+
+        PropertyKey key = POOL.get(value);
+
+        if (key == null) {
+            if (POOL.size() >= MAX_POOL_SIZE) {
+                POOL.clear();
+            }
+            key = new PropertyKey(value);
+            PropertyKey existing = POOL.putIfAbsent(value, key);
+
+            if (existing != null) {
+                key = existing;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Gets the canonical key of the given property name.
+     * 
+     * @param name
+     *            the property name
+     * @return the interned key or null, if the name is null
+     */
+    public static PropertyKey valueOf(Name name) {
+
+        if (name == null) {
+            return null;
+        }
+        return valueOf(name.getValue());
+    }
+
+    /**
+     * @return the property name
+     */
+    public String getValue() {
+        return this.value;
+    }
+
+    /**
+     * @return true, if the key is a dotted property path
+     */
+    public boolean isPath() {
+        return this.path != null;
+    }
+
+    /**
+     * @return the segments of a dotted property path or null, if the key is no path
+     */
+    String[] getPath() {
+        return this.path;
+    }
+
+    /**
+     * @return the key of the first path segment, or this key, if it is no path
+     */
+    public PropertyKey getRoot() {
+        return this.root;
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof PropertyKey)) {
+            return false;
+        }
+
+        PropertyKey other = (PropertyKey) obj;
+
+        if (this.hash != other.hash) {
+            return false;
+        }
+        return this.value == null ? other.value == null : this.value.equals(other.value);
+    }
+
+    @Override
+    public String toString() {
+        return this.value;
+    }
+
+    /**
+     * Replaces deserialized keys with their canonical instance.
+     * 
+     * @return the interned key
+     * @throws ObjectStreamException
+     *             never
+     */
+    private Object readResolve() throws ObjectStreamException {
+        return valueOf(this.value);
+    }
+
+}
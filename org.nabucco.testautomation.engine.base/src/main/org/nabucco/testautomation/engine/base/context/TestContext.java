@@ -18,11 +18,19 @@ package org.nabucco.testautomation.engine.base.context;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.nabucco.framework.base.facade.datatype.Name;
+import org.nabucco.framework.base.facade.datatype.logger.NabuccoLogger;
+import org.nabucco.framework.base.facade.datatype.logger.NabuccoLoggingFactory;
 import org.nabucco.testautomation.config.facade.datatype.TestConfigElement;
 import org.nabucco.testautomation.engine.base.engine.ExecutionController;
 import org.nabucco.testautomation.property.facade.datatype.PropertyList;
@@ -32,8 +40,10 @@ import org.nabucco.testautomation.property.facade.datatype.base.PropertyComponen
 import org.nabucco.testautomation.property.facade.datatype.base.PropertyComposite;
 import org.nabucco.testautomation.property.facade.datatype.base.PropertyContainer;
 import org.nabucco.testautomation.property.facade.datatype.base.PropertyReference;
+import org.nabucco.testautomation.property.facade.datatype.base.PropertyType;
 import org.nabucco.testautomation.property.facade.datatype.util.PropertyHelper;
 import org.nabucco.testautomation.result.facade.datatype.TestConfigurationResult;
+import org.nabucco.testautomation.result.facade.datatype.trace.ActionTrace;
 import org.nabucco.testautomation.script.facade.datatype.dictionary.TestScript;
 import org.nabucco.testautomation.script.facade.datatype.dictionary.base.TestScriptElement;
 import org.nabucco.testautomation.settings.facade.datatype.engine.SubEngineType;
@@ -48,11 +58,14 @@ import org.nabucco.testautomation.settings.facade.datatype.engine.proxy.ProxyCon
  */
 public final class TestContext implements Serializable, Cloneable {
 
-    private static final long serialVersionUID = 1L;
-
-    private static final String REGEX_SPLITTER = "\\.";
+    /**
+     * Version 2 keys the properties by {@link PropertyKey} and adds version stamps and tracing
+     * policies, so contexts of engines with version 1 are rejected instead of being read with
+     * unusable fields.
+     */
+    private static final long serialVersionUID = 2L;
 
-    private static final String SPLITTER = ".";
+    private static final NabuccoLogger logger = NabuccoLoggingFactory.getInstance().getLogger(TestContext.class);
 
     /**
      * PropertyId for the brand of the current TestSheet.
@@ -84,7 +97,17 @@ public final class TestContext implements Serializable, Cloneable {
      */
     public static final Name EMAIL = new Name("global_email");
 
-    private final Map<Name, Property> propertyMap;
+    private final Map<PropertyKey, Property> propertyMap;
+
+    private final Map<PropertyKey, Long> propertyVersions;
+
+    private long version;
+
+    private transient Collection<Property> propertyView;
+
+    private transient List<TestContextListener> listeners;
+
+    private transient Map<PropertyKey, List<TestContextListener>> propertyListeners;
 
     private Map<SubEngineType, ProxyConfiguration> proxyConfigurations;
 
@@ -100,11 +123,22 @@ public final class TestContext implements Serializable, Cloneable {
 
     private boolean tracing = false;
 
+    private TracingPolicy tracingPolicy;
+
+    private long iteration;
+
+    /**
+     * Not serialized. Buffered traces belong to the step running on this engine, a copy of the
+     * context, e.g. for a sub-engine, starts with an empty buffer.
+     */
+    private transient TraceBuffer traceBuffer;
+
     /**
      * Constructs a new TestContext instance.
      */
     public TestContext() {
-        this.propertyMap = new HashMap<Name, Property>();
+        this.propertyMap = new HashMap<PropertyKey, Property>();
+        this.propertyVersions = new HashMap<PropertyKey, Long>();
         this.currentTestConfigElement = new HashMap<HierarchyLevelType, TestConfigElement>();
     }
 
@@ -119,7 +153,9 @@ public final class TestContext implements Serializable, Cloneable {
         if (property == null || property.getName() == null) {
             return;
         }
-        this.propertyMap.put(property.getName(), property);
+        PropertyKey key = PropertyKey.valueOf(property.getName());
+        Property oldProperty = this.propertyMap.put(key, property);
+        this.touch(key, property.getName(), oldProperty, property);
     }
 
     /**
@@ -129,8 +165,23 @@ public final class TestContext implements Serializable, Cloneable {
      *            the PropertyList to merge into the context
      */
     public void merge(PropertyList propertyList) {
+        this.merge(propertyList, false);
+    }
+
+    /**
+     * Merges the given {@link PropertyList} into the TestContext. The properties of each merged
+     * level are indexed by name once, so that merging N properties into a list of M properties
+     * costs O(N+M). In delta mode, components equal to the existing ones are not replaced.
+     * 
+     * @param propertyList
+     *            the PropertyList to merge into the context
+     * @param delta
+     *            true, if only changed components are applied
+     */
+    public void merge(PropertyList propertyList, boolean delta) {
 
-        PropertyList existingPropertyList = (PropertyList) this.propertyMap.get(propertyList.getName());
+        PropertyKey key = PropertyKey.valueOf(propertyList.getName());
+        PropertyList existingPropertyList = (PropertyList) this.propertyMap.get(key);
 
         // No merging if PropertyList does not exists in context
         if (existingPropertyList == null) {
@@ -139,7 +190,19 @@ public final class TestContext implements Serializable, Cloneable {
         }
 
         // Merge
-        merge(propertyList, existingPropertyList);
+        long start = System.nanoTime();
+        int[] statistics = new int[2];
+        merge(propertyList, existingPropertyList, delta, statistics);
+
+        if (statistics[1] > 0) {
+            this.touch(key, existingPropertyList.getName(), existingPropertyList, existingPropertyList);
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Merged PropertyList '"
+                    + propertyList.getName().getValue() + "': " + statistics[0] + " properties visited, "
+                    + statistics[1] + " applied in " + (System.nanoTime() - start) / 1000 + " microseconds");
+        }
     }
 
     /**
@@ -149,23 +212,81 @@ public final class TestContext implements Serializable, Cloneable {
      *            PropertyComposite to merge from
      * @param to
      *            PropertyComposite to merge to
+     * @param delta
+     *            true, if only changed components are applied
+     * @param statistics
+     *            the number of visited and applied properties
      */
-    private void merge(PropertyComposite from, PropertyComposite to) {
+    private void merge(PropertyComposite from, PropertyComposite to, boolean delta, int[] statistics) {
+
+        Map<String, PropertyContainer> index = new HashMap<String, PropertyContainer>();
+
+        for (PropertyContainer container : to.getPropertyList()) {
+            Property existing = container.getProperty();
+
+            if (existing != null && existing.getName() != null && !index.containsKey(existing.getName().getValue())) {
+                index.put(existing.getName().getValue(), container);
+            }
+        }
 
         for (PropertyContainer container : from.getPropertyList()) {
             Property prop = container.getProperty();
+            PropertyContainer match = index.get(prop.getName().getValue());
+            Property existing = match != null && match.getProperty().getType() == prop.getType() ? match.getProperty()
+                    : null;
+            statistics[0]++;
 
             if (prop instanceof PropertyComposite) {
-                PropertyComposite existing = (PropertyComposite) PropertyHelper.getFromList(to, prop.getType(), prop
-                        .getName().getValue());
+
+                if (existing == null && match != null) {
+                    existing = PropertyHelper.getFromList(to, prop.getType(), prop.getName().getValue());
+                }
 
                 if (existing == null) {
                     PropertyHelper.add(prop, to);
+                    statistics[1]++;
+
+                    if (match == null) {
+                        index(to, prop.getName().getValue(), index);
+                    }
                 } else {
-                    merge((PropertyComposite) prop, existing);
+                    merge((PropertyComposite) prop, (PropertyComposite) existing, delta, statistics);
                 }
-            } else {
+            } else if (existing == null) {
                 PropertyHelper.replace(to, (PropertyComponent) prop);
+                statistics[1]++;
+
+                if (match == null) {
+                    index(to, prop.getName().getValue(), index);
+                }
+            } else if (!delta || !existing.equals(prop)) {
+                match.setProperty(prop);
+                statistics[1]++;
+            }
+        }
+    }
+
+    /**
+     * Adds the container of a property just added to the given composite to the name index, so
+     * that a later property of the same name is merged into it instead of being added again.
+     * Added properties are appended, so the list is searched from the end.
+     * 
+     * @param to
+     *            the composite the property was added to
+     * @param name
+     *            the name of the added property
+     * @param index
+     *            the name index of the composite
+     */
+    private static void index(PropertyComposite to, String name, Map<String, PropertyContainer> index) {
+        List<PropertyContainer> list = to.getPropertyList();
+
+        for (int i = list.size() - 1; i >= 0; i--) {
+            Property property = list.get(i).getProperty();
+
+            if (property != null && property.getName() != null && name.equals(property.getName().getValue())) {
+                index.put(name, list.get(i));
+                return;
             }
         }
     }
@@ -181,26 +302,8 @@ public final class TestContext implements Serializable, Cloneable {
 
         if (propertyName == null || propertyName.getValue() == null) {
             return null;
-        } else if (propertyName.getValue().contains(SPLITTER)) {
-            String[] props = propertyName.getValue().split(REGEX_SPLITTER);
-            List<Property> tempPropertyList = new ArrayList<Property>(this.propertyMap.values());
-            Property property = null;
-
-            for (String name : props) {
-                property = PropertyHelper.getFromList(tempPropertyList, name);
-
-                if (property == null) {
-                    return null;
-                }
-
-                if (property instanceof PropertyComposite) {
-                    tempPropertyList = PropertyHelper.extract(((PropertyComposite) property).getPropertyList());
-                }
-            }
-            return property;
-        } else {
-            return this.propertyMap.get(propertyName);
         }
+        return this.getProperty(PropertyKey.valueOf(propertyName.getValue()));
     }
 
     /**
@@ -211,7 +314,49 @@ public final class TestContext implements Serializable, Cloneable {
      * @return the property or null, if it is not contained by the context
      */
     public Property getProperty(PropertyReference propertyRef) {
-        return getProperty(new Name(propertyRef.getValue()));
+
+        if (propertyRef == null || propertyRef.getValue() == null) {
+            return null;
+        }
+        return this.getProperty(PropertyKey.valueOf(propertyRef.getValue()));
+    }
+
+    /**
+     * Gets the property with the given key from the context. Dotted keys are resolved through the
+     * nested property composites.
+     * 
+     * @param key
+     *            the key to lookup
+     * @return the property or null, if not found
+     */
+    public Property getProperty(PropertyKey key) {
+
+        if (key == null || key.getValue() == null) {
+            return null;
+        } else if (!key.isPath()) {
+            return this.propertyMap.get(key);
+        }
+
+        List<Property> tempPropertyList = null;
+        Property property = null;
+
+        for (String name : key.getPath()) {
+
+            if (tempPropertyList == null) {
+                property = this.propertyMap.get(PropertyKey.valueOf(name));
+            } else {
+                property = PropertyHelper.getFromList(tempPropertyList, name);
+            }
+
+            if (property == null) {
+                return null;
+            }
+
+            if (property instanceof PropertyComposite) {
+                tempPropertyList = PropertyHelper.extract(((PropertyComposite) property).getPropertyList());
+            }
+        }
+        return property;
     }
 
     /**
@@ -223,6 +368,72 @@ public final class TestContext implements Serializable, Cloneable {
         return new ArrayList<Property>(this.propertyMap.values());
     }
 
+    /**
+     * Gets an unmodifiable live view of all properties contained by this context. In contrast to
+     * {@link #getAll()} no copy is created, changes of the context are visible in the view. The
+     * context must not be modified while iterating the view.
+     * 
+     * @return the unmodifiable view
+     */
+    public Collection<Property> getAllView() {
+
+        if (this.propertyView == null) {
+            this.propertyView = Collections.unmodifiableCollection(this.propertyMap.values());
+        }
+        return this.propertyView;
+    }
+
+    /**
+     * Gets an unmodifiable live view of all properties of the given {@link PropertyType}. The
+     * properties are filtered lazily while iterating.
+     * 
+     * @param type
+     *            the requested type
+     * @return the filtered view
+     */
+    public Iterable<Property> getAllView(final PropertyType type) {
+        return new Iterable<Property>() {
+
+            @Override
+            public Iterator<Property> iterator() {
+                return new TypeFilterIterator(getAllView().iterator(), type);
+            }
+        };
+    }
+
+    /**
+     * Calls the given visitor for each property contained by this context until the visitor
+     * returns false.
+     * 
+     * @param visitor
+     *            the visitor to call
+     * @return true, if all properties were visited, false if the visitor stopped
+     */
+    public boolean forEach(TestContextVisitor visitor) {
+        return this.forEach(null, visitor);
+    }
+
+    /**
+     * Calls the given visitor for each property of the given {@link PropertyType} contained by
+     * this context until the visitor returns false.
+     * 
+     * @param type
+     *            the requested type, null for all properties
+     * @param visitor
+     *            the visitor to call
+     * @return true, if all properties were visited, false if the visitor stopped
+     */
+    public boolean forEach(PropertyType type, TestContextVisitor visitor) {
+
+        for (Property property : this.propertyMap.values()) {
+
+            if ((type == null || property.getType() == type) && !visitor.visit(property)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Puts each property in a given list to the context.
      * 
@@ -238,7 +449,9 @@ public final class TestContext implements Serializable, Cloneable {
         for (Property prop : properties) {
 
             if (prop != null && prop.getName() != null) {
-                this.propertyMap.put(prop.getName(), prop);
+                PropertyKey key = PropertyKey.valueOf(prop.getName());
+                Property oldProperty = this.propertyMap.put(key, prop);
+                this.touch(key, prop.getName(), oldProperty, prop);
             }
         }
     }
@@ -302,7 +515,216 @@ public final class TestContext implements Serializable, Cloneable {
         if (property == null || property.getName() == null) {
             return;
         }
-        this.propertyMap.remove(property.getName());
+        PropertyKey key = PropertyKey.valueOf(property.getName());
+        Property oldProperty = this.propertyMap.remove(key);
+
+        if (oldProperty != null) {
+            this.touch(key, property.getName(), oldProperty, null);
+        }
+    }
+
+    /**
+     * Increments the version of the context, stamps the given property with it and notifies the
+     * registered listeners.
+     * 
+     * @param key
+     *            the key of the changed property
+     * @param propertyName
+     *            the name of the changed property
+     * @param oldProperty
+     *            the property before the change, null if it was added
+     * @param newProperty
+     *            the property after the change, null if it was removed
+     */
+    private void touch(PropertyKey key, Name propertyName, Property oldProperty, Property newProperty) {
+        this.propertyVersions.put(key, ++this.version);
+
+        if (this.listeners == null && this.propertyListeners == null) {
+            return;
+        }
+
+        TestContextEvent event = new TestContextEvent(this, propertyName, oldProperty, newProperty, this.version);
+
+        if (this.propertyListeners != null) {
+            List<TestContextListener> listenerList = this.propertyListeners.get(key);
+
+            if (listenerList != null) {
+                for (TestContextListener listener : listenerList) {
+                    listener.propertyChanged(event);
+                }
+            }
+        }
+
+        if (this.listeners != null) {
+            for (TestContextListener listener : this.listeners) {
+                listener.propertyChanged(event);
+            }
+        }
+    }
+
+    /**
+     * Registers a listener notified about changes of all properties.
+     * 
+     * @param listener
+     *            the listener to add
+     */
+    public void addListener(TestContextListener listener) {
+
+        if (listener == null) {
+            return;
+        }
+
+        if (this.listeners == null) {
+            this.listeners = new CopyOnWriteArrayList<TestContextListener>();
+        }
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Registers a listener notified about changes of the property with the given top-level name.
+     * 
+     * @param propertyName
+     *            the name of the observed property
+     * @param listener
+     *            the listener to add
+     */
+    public void addListener(Name propertyName, TestContextListener listener) {
+
+        if (propertyName == null || listener == null) {
+            return;
+        }
+
+        if (this.propertyListeners == null) {
+            this.propertyListeners = new ConcurrentHashMap<PropertyKey, List<TestContextListener>>();
+        }
+
+        PropertyKey key = PropertyKey.valueOf(propertyName);
+        List<TestContextListener> listenerList = this.propertyListeners.get(key);
+
+        if (listenerList == null) {
+            listenerList = new CopyOnWriteArrayList<TestContextListener>();
+            this.propertyListeners.put(key, listenerList);
+        }
+        listenerList.add(listener);
+    }
+
+    /**
+     * Removes a listener registered for all properties.
+     * 
+     * @param listener
+     *            the listener to remove
+     */
+    public void removeListener(TestContextListener listener) {
+
+        if (this.listeners != null) {
+            this.listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Removes a listener registered for the property with the given name.
+     * 
+     * @param propertyName
+     *            the name of the observed property
+     * @param listener
+     *            the listener to remove
+     */
+    public void removeListener(Name propertyName, TestContextListener listener) {
+
+        if (this.propertyListeners == null || propertyName == null) {
+            return;
+        }
+
+        List<TestContextListener> listenerList = this.propertyListeners.get(PropertyKey.valueOf(propertyName));
+
+        if (listenerList != null) {
+            listenerList.remove(listener);
+        }
+    }
+
+    /**
+     * Creates a compact snapshot of all properties of this context for the handoff to another
+     * engine.
+     * 
+     * @return the full snapshot
+     */
+    public TestContextSnapshot createSnapshot() {
+        return this.createSnapshot(0);
+    }
+
+    /**
+     * Creates a compact snapshot of the properties changed or removed since the given context
+     * version. The version of a previous snapshot may be used to send deltas only. Changes are
+     * detected by the version stamps of put, merge and removal, properties modified in place are
+     * not detected.
+     * 
+     * @param sinceVersion
+     *            the context version of the previous snapshot, 0 for a full snapshot
+     * @return the snapshot
+     */
+    public TestContextSnapshot createSnapshot(long sinceVersion) {
+        TestContextSnapshot snapshot = new TestContextSnapshot(sinceVersion, this.version, this.tracing);
+
+        if (sinceVersion <= 0) {
+            for (Map.Entry<PropertyKey, Property> entry : this.propertyMap.entrySet()) {
+                snapshot.addProperty(entry.getKey(), entry.getValue());
+            }
+            return snapshot;
+        }
+
+        for (Map.Entry<PropertyKey, Long> entry : this.propertyVersions.entrySet()) {
+
+            if (entry.getValue() > sinceVersion) {
+                Property property = this.propertyMap.get(entry.getKey());
+
+                if (property != null) {
+                    snapshot.addProperty(entry.getKey(), property);
+                } else {
+                    snapshot.addRemoved(entry.getKey());
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Gets the version of the context. The version is incremented on every put, merge or removal
+     * of a property and never decreases.
+     * 
+     * @return the current version
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Gets the version stamp of the property with the given name, i.e. the context version of its
+     * last put, merge or removal. Only the top-level name of a dotted path is considered.
+     * 
+     * @param propertyName
+     *            the top-level property name
+     * @return the version stamp or 0, if the property was never changed
+     */
+    public long getVersion(Name propertyName) {
+        return this.getVersion(PropertyKey.valueOf(propertyName));
+    }
+
+    /**
+     * Gets the version stamp of the property with the given key, i.e. the context version of its
+     * last put, merge or removal. For dotted keys the stamp of the top-level property is returned.
+     * 
+     * @param key
+     *            the property key
+     * @return the version stamp or 0, if the property was never changed
+     */
+    public long getVersion(PropertyKey key) {
+
+        if (key == null) {
+            return 0;
+        }
+
+        Long stamp = this.propertyVersions.get(key.getRoot());
+        return stamp != null ? stamp : 0;
     }
 
     /**
@@ -346,11 +768,93 @@ public final class TestContext implements Serializable, Cloneable {
     }
 
     /**
+     * Checks whether traces are created for the current step. Tracing must be enabled and the
+     * {@link TracingPolicy}, if set, must accept the current state of the context.
      * 
-     * @return
+     * @return true, if traces are created
      */
     public boolean isTracingEnabled() {
-        return this.tracing;
+        return this.tracing && (this.tracingPolicy == null || this.tracingPolicy.isTracingEnabled(this));
+    }
+
+    /**
+     * Sets the policy deciding which steps are traced while tracing is enabled.
+     * 
+     * @param tracingPolicy
+     *            the policy, null to trace every step
+     */
+    public void setTracingPolicy(TracingPolicy tracingPolicy) {
+        this.tracingPolicy = tracingPolicy;
+        this.traceBuffer = null;
+    }
+
+    /**
+     * @return the tracing policy or null, if every step is traced
+     */
+    public TracingPolicy getTracingPolicy() {
+        return this.tracingPolicy;
+    }
+
+    /**
+     * Starts the next iteration, e.g. of a loop or a data-driven run. Sampling policies decide on
+     * the iteration count.
+     * 
+     * @return the new iteration count
+     */
+    public long nextIteration() {
+        return ++this.iteration;
+    }
+
+    /**
+     * @return the number of started iterations
+     */
+    public long getIteration() {
+        return this.iteration;
+    }
+
+    /**
+     * Keeps the given trace in the trace buffer, if the tracing policy buffers traces. The buffer
+     * is not serialized with the context, so buffered traces must be flushed or discarded before
+     * the context is handed to another engine.
+     * 
+     * @param trace
+     *            the created trace
+     * @return true, if the trace was buffered, false if it must be attached to the result directly
+     */
+    public boolean bufferTrace(ActionTrace trace) {
+
+        if (this.tracingPolicy == null || !this.tracingPolicy.isBuffered()) {
+            return false;
+        }
+
+        if (this.traceBuffer == null) {
+            this.traceBuffer = new TraceBuffer(this.tracingPolicy.getBufferCapacity());
+        }
+        this.traceBuffer.add(trace);
+        return true;
+    }
+
+    /**
+     * Removes the buffered traces, to be attached to the result of a failed step.
+     * 
+     * @return the buffered traces in creation order
+     */
+    public List<ActionTrace> flushTraces() {
+
+        if (this.traceBuffer == null) {
+            return Collections.emptyList();
+        }
+        return this.traceBuffer.flush();
+    }
+
+    /**
+     * Discards the buffered traces after a successful step.
+     */
+    public void discardTraces() {
+
+        if (this.traceBuffer != null) {
+            this.traceBuffer.clear();
+        }
     }
 
     /**
@@ -410,6 +914,8 @@ public final class TestContext implements Serializable, Cloneable {
 
         TestContext clone = new TestContext();
         clone.tracing = this.tracing;
+        clone.tracingPolicy = this.tracingPolicy;
+        clone.iteration = this.iteration;
 
         for (Property property : this.propertyMap.values()) {
             clone.put(property.cloneObject());
@@ -429,4 +935,48 @@ public final class TestContext implements Serializable, Cloneable {
         this.currentTestConfigElement = currentTestConfigElement;
     }
 
+    /**
+     * Iterator skipping all properties not of a certain type.
+     */
+    private static final class TypeFilterIterator implements Iterator<Property> {
+
+        private final Iterator<Property> delegate;
+
+        private final PropertyType type;
+
+        private Property next;
+
+        private TypeFilterIterator(Iterator<Property> delegate, PropertyType type) {
+            this.delegate = delegate;
+            this.type = type;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (this.next == null && this.delegate.hasNext()) {
+                Property candidate = this.delegate.next();
+
+                if (this.type == null || candidate.getType() == this.type) {
+                    this.next = candidate;
+                }
+            }
+            return this.next != null;
+        }
+
+        @Override
+        public Property next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Property property = this.next;
+            this.next = null;
+            return property;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.context;
+
+import org.nabucco.framework.base.facade.datatype.Name;
+import org.nabucco.testautomation.property.facade.datatype.base.Property;
+
+/**
+ * TestContextEvent
+ * 
+ * Describes a change of a property of a {@link TestContext}.
+ * 
+ * @author agent
+ */
+public class TestContextEvent {
+
+    private final TestContext context;
+
+    private final Name propertyName;
+
+    private final Property oldProperty;
+
+    private final Property newProperty;
+
+    private final long version;
+
+    /**
+     * Creates a new event.
+     * 
+     * @param context
+     *            the changed context
+     * @param propertyName
+     *            the name of the changed property
+     * @param oldProperty
+     *            the property before the change, null if it was added
+     * @param newProperty
+     *            the property after the change, null if it was removed
+     * @param version
+     *            the context version after the change
+     */
+    public TestContextEvent(TestContext context, Name propertyName, Property oldProperty, Property newProperty,
+            long version) {
+        this.context = context;
+        this.propertyName = propertyName;
+        this.oldProperty = oldProperty;
+        this.newProperty = newProperty;
+        this.version = version;
+    }
+
+    /**
+     * @return the changed context
+     */
+    public TestContext getContext() {
+        return this.context;
+    }
+
+    /**
+     * @return the name of the changed property
+     */
+    public Name getPropertyName() {
+        return this.propertyName;
+    }
+
+    /**
+     * @return the property before the change, null if it was added
+     */
+    public Property getOldProperty() {
+        return this.oldProperty;
+    }
+
+    /**
+     * @return the property after the change, null if it was removed
+     */
+    public Property getNewProperty() {
+        return this.newProperty;
+    }
+
+    /**
+     * @return true, if the property was removed from the context
+     */
+    public boolean isRemoval() {
+        return this.newProperty == null;
+    }
+
+    /**
+     * @return true, if the property was merged, i.e. modified in place
+     */
+    public boolean isMerge() {
+        return this.oldProperty != null && this.oldProperty == this.newProperty;
+    }
+
+    /**
+     * @return the context version after the change
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.context;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.nabucco.testautomation.property.facade.datatype.base.Property;
+
+/**
+ * TestContextSnapshot
+ * 
+ * Compact, externalizable snapshot of the properties of a {@link TestContext} for the handoff to
+ * sub-engines. In contrast to the serialized context it contains neither the
+ * {@link org.nabucco.testautomation.engine.base.engine.ExecutionController}, nor the result tree
+ * or the current configuration elements. Properties are written without separate keys, since the
+ * key of a property is its name. A delta snapshot only contains the properties changed or removed
+ * since a given context version, removed properties are written by name only.
+ * 
+ * @author agent
+ */
+public final class TestContextSnapshot implements Externalizable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int FORMAT_VERSION = 2;
+
+    private long baseVersion;
+
+    private long version;
+
+    private boolean tracing;
+
+    private Map<PropertyKey, Property> properties;
+
+    private List<PropertyKey> removed;
+
+    /**
+     * Constructor for deserialization only.
+     */
+    public TestContextSnapshot() {
+        this.properties = new LinkedHashMap<PropertyKey, Property>();
+        this.removed = new ArrayList<PropertyKey>();
+    }
+
+    /**
+     * Creates a new snapshot.
+     * 
+     * @param baseVersion
+     *            the context version the delta is based on, 0 for a full snapshot
+     * @param version
+     *            the context version of the snapshot
+     * @param tracing
+     *            the tracing flag of the context
+     */
+    TestContextSnapshot(long baseVersion, long version, boolean tracing) {
+        this();
+        this.baseVersion = baseVersion;
+        this.version = version;
+        this.tracing = tracing;
+    }
+
+    void addProperty(PropertyKey key, Property property) {
+        this.properties.put(key, property);
+    }
+
+    void addRemoved(PropertyKey key) {
+        this.removed.add(key);
+    }
+
+    /**
+     * @return the context version the delta is based on, 0 for a full snapshot
+     */
+    public long getBaseVersion() {
+        return this.baseVersion;
+    }
+
+    /**
+     * @return the context version of the snapshot, to be used as base of the next delta
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @return true, if the snapshot only contains the changes since its base version
+     */
+    public boolean isDelta() {
+        return this.baseVersion > 0;
+    }
+
+    /**
+     * @return the number of contained and removed properties
+     */
+    public int size() {
+        return this.properties.size() + this.removed.size();
+    }
+
+    /**
+     * Applies the snapshot to the given context. Contained properties are put into the context,
+     * removed properties are removed from it.
+     * 
+     * @param ctx
+     *            the context to update
+     */
+    public void applyTo(TestContext ctx) {
+
+        for (Property property : this.properties.values()) {
+            ctx.put(property);
+        }
+
+        for (PropertyKey key : this.removed) {
+            Property property = ctx.getProperty(key);
+
+            if (property != null) {
+                ctx.remove(property);
+            }
+        }
+        ctx.setTracingEnabled(this.tracing);
+    }
+
+    /**
+     * Creates a new context holding the properties of this snapshot.
+     * 
+     * @return the new context
+     */
+    public TestContext toContext() {
+        TestContext ctx = new TestContext();
+        this.applyTo(ctx);
+        return ctx;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(this.baseVersion);
+        out.writeLong(this.version);
+        out.writeBoolean(this.tracing);
+
+        // The key of a property is its name, which is part of the property itself
+        out.writeInt(this.properties.size());
+        for (Property property : this.properties.values()) {
+            out.writeObject(property);
+        }
+
+        out.writeInt(this.removed.size());
+        for (PropertyKey key : this.removed) {
+            out.writeBoolean(key.getValue() != null);
+
+            if (key.getValue() != null) {
+                out.writeUTF(key.getValue());
+            }
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        int format = in.readInt();
+
+        if (format != FORMAT_VERSION) {
+            throw new InvalidObjectException("Unsupported TestContextSnapshot format: " + format);
+        }
+
+        this.baseVersion = in.readLong();
+        this.version = in.readLong();
+        this.tracing = in.readBoolean();
+
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            Property property = (Property) in.readObject();
+
+            if (property == null || property.getName() == null) {
+                throw new InvalidObjectException("Unnamed property in TestContextSnapshot");
+            }
+            this.properties.put(PropertyKey.valueOf(property.getName()), property);
+        }
+
+        size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            this.removed.add(PropertyKey.valueOf(in.readBoolean() ? in.readUTF() : null));
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.context;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.nabucco.testautomation.result.facade.datatype.trace.ActionTrace;
+
+/**
+ * TraceBuffer
+ * 
+ * Ring buffer of the most recent traces of a {@link TestContext}. If full, the oldest trace is
+ * dropped. The buffered traces are flushed into the result on failure and discarded otherwise.
+ * 
+ * @author agent
+ */
+public final class TraceBuffer {
+
+    private final ActionTrace[] traces;
+
+    private int start;
+
+    private int size;
+
+    private long dropped;
+
+    /**
+     * Creates a new buffer.
+     * 
+     * @param capacity
+     *            the maximum number of buffered traces
+     */
+    public TraceBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.traces = new ActionTrace[capacity];
+    }
+
+    /**
+     * Adds a trace, dropping the oldest one if the buffer is full.
+     * 
+     * @param trace
+     *            the trace to add
+     */
+    public synchronized void add(ActionTrace trace) {
+        int capacity = this.traces.length;
+
+        if (this.size < capacity) {
+            this.traces[(this.start + this.size) % capacity] = trace;
+            this.size++;
+        } else {
+            this.traces[this.start] = trace;
+            this.start = (this.start + 1) % capacity;
+            this.dropped++;
+        }
+    }
+
+    /**
+     * Removes and returns all buffered traces in the order they were added.
+     * 
+     * @return the buffered traces
+     */
+    public synchronized List<ActionTrace> flush() {
+        List<ActionTrace> list = new ArrayList<ActionTrace>(this.size);
+
+        for (int i = 0; i < this.size; i++) {
+            list.add(this.traces[(this.start + i) % this.traces.length]);
+        }
+        this.clear();
+        return list;
+    }
+
+    /**
+     * Discards all buffered traces.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < this.traces.length; i++) {
+            this.traces[i] = null;
+        }
+        this.start = 0;
+        this.size = 0;
+    }
+
+    /**
+     * @return the number of buffered traces
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the number of traces dropped because the buffer was full
+     */
+    public synchronized long getDropped() {
+        return this.dropped;
+    }
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.context;
+
+import java.util.Arrays;
+
+import org.nabucco.testautomation.script.facade.datatype.dictionary.base.TestScriptElement;
+
+/**
+ * TracingPolicies
+ * 
+ * Factory for the {@link TracingPolicy} implementations.
+ * 
+ * @author agent
+ */
+public final class TracingPolicies {
+
+    /**
+     * Default number of traces kept until a failure occurs.
+     */
+    public static final int DEFAULT_BUFFER_CAPACITY = 32;
+
+    private TracingPolicies() {
+    }
+
+    /**
+     * Creates a policy tracing every step.
+     */
+    public static TracingPolicy always() {
+        return new AlwaysPolicy();
+    }
+
+    /**
+     * Creates a policy tracing every n-th iteration of the context, starting with the first, i.e.
+     * iterations 1, n + 1, 2n + 1 and so on. Executions before the first iteration was started are
+     * traced like the first. See {@link TestContext#nextIteration()}.
+     */
+    public static TracingPolicy everyNth(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("Sampling interval must be positive");
+        }
+        return new SamplingPolicy(n);
+    }
+
+    /**
+     * Creates a policy tracing every step into a ring buffer with the default capacity, which is
+     * flushed into the result only on failure.
+     */
+    public static TracingPolicy onFailure() {
+        return onFailure(DEFAULT_BUFFER_CAPACITY);
+    }
+
+    /**
+     * Creates a policy tracing every step into a ring buffer of the given capacity, which is
+     * flushed into the result only on failure.
+     */
+    public static TracingPolicy onFailure(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Buffer capacity must be positive");
+        }
+        return new FailurePolicy(capacity);
+    }
+
+    /**
+     * Creates a policy tracing only, if the current TestScriptElement is an instance of one of the
+     * given types.
+     */
+    public static TracingPolicy forElements(Class<?>... elementTypes) {
+        return new ElementPolicy(elementTypes.clone());
+    }
+
+    /**
+     * Creates a policy tracing only, if all given policies trace. Traces are buffered, if one of
+     * the policies buffers.
+     */
+    public static TracingPolicy all(TracingPolicy... policies) {
+        return new CompositePolicy(policies.clone());
+    }
+
+    private static class AlwaysPolicy implements TracingPolicy {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public boolean isTracingEnabled(TestContext context) {
+            return true;
+        }
+
+        @Override
+        public boolean isBuffered() {
+            return false;
+        }
+
+        @Override
+        public int getBufferCapacity() {
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "always";
+        }
+    }
+
+    private static final class SamplingPolicy extends AlwaysPolicy {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int n;
+
+        private SamplingPolicy(int n) {
+            this.n = n;
+        }
+
+        @Override
+        public boolean isTracingEnabled(TestContext context) {
+            long iteration = Math.max(context.getIteration(), 1);
+            return (iteration - 1) % this.n == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "every " + this.n + ". iteration";
+        }
+    }
+
+    private static final class FailurePolicy extends AlwaysPolicy {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        private FailurePolicy(int capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        public boolean isBuffered() {
+            return true;
+        }
+
+        @Override
+        public int getBufferCapacity() {
+            return this.capacity;
+        }
+
+        @Override
+        public String toString() {
+            return "on failure (last " + this.capacity + " traces)";
+        }
+    }
+
+    private static final class ElementPolicy extends AlwaysPolicy {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Class<?>[] elementTypes;
+
+        private ElementPolicy(Class<?>[] elementTypes) {
+            this.elementTypes = elementTypes;
+        }
+
+        @Override
+        public boolean isTracingEnabled(TestContext context) {
+            TestScriptElement element = context.getCurrentTestScriptElement();
+
+            if (element == null) {
+                return false;
+            }
+
+            for (Class<?> type : this.elementTypes) {
+                if (type.isInstance(element)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "for elements " + Arrays.toString(this.elementTypes);
+        }
+    }
+
+    private static final class CompositePolicy implements TracingPolicy {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TracingPolicy[] policies;
+
+        private CompositePolicy(TracingPolicy[] policies) {
+            this.policies = policies;
+        }
+
+        @Override
+        public boolean isTracingEnabled(TestContext context) {
+            for (TracingPolicy policy : this.policies) {
+                if (!policy.isTracingEnabled(context)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isBuffered() {
+            return this.getBufferCapacity() > 0;
+        }
+
+        @Override
+        public int getBufferCapacity() {
+            int capacity = 0;
+            for (TracingPolicy policy : this.policies) {
+                if (policy.isBuffered()) {
+                    capacity = Math.max(capacity, policy.getBufferCapacity());
+                }
+            }
+            return capacity;
+        }
+
+        @Override
+        public String toString() {
+            return "all of " + Arrays.toString(this.policies);
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.context;
+
+import java.io.Serializable;
+
+/**
+ * TracingPolicy
+ * 
+ * Decides whether traces are created while tracing is enabled on a {@link TestContext}. Policies
+ * are created by {@link TracingPolicies}.
+ * 
+ * @author agent
+ */
+public interface TracingPolicy extends Serializable {
+
+    /**
+     * Checks whether traces are created for the current state of the given context.
+     * 
+     * @param context
+     *            the context
+     * @return true, if traces are created
+     */
+    public boolean isTracingEnabled(TestContext context);
+
+    /**
+     * Checks whether created traces are kept in the {@link TraceBuffer} of the context until a
+     * failure occurs, instead of being attached to the result directly.
+     * 
+     * @return true, if traces are buffered
+     */
+    public boolean isBuffered();
+
+    /**
+     * Gets the number of traces kept in the {@link TraceBuffer}.
+     * 
+     * @return the buffer capacity, 0 if not buffered
+     */
+    public int getBufferCapacity();
+
+}
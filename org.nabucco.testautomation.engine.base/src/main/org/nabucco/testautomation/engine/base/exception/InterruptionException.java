@@ -19,6 +19,8 @@ package org.nabucco.testautomation.engine.base.exception;
 /**
  * InterruptionException
  * 
+ * Captures its stack trace only, if enabled by {@link NBCTestExceptionMode}.
+ * 
  * @author Steffen Schmidt, PRODYNA AG
  */
 public class InterruptionException extends RuntimeException {
@@ -41,4 +43,23 @@ public class InterruptionException extends RuntimeException {
 		super(arg0);
 	}
 
+	/**
+	 * Gets a new exception signalling an interrupted execution. Its stack trace is only captured, if
+	 * enabled by {@link NBCTestExceptionMode}.
+	 * 
+	 * @return the exception to throw
+	 */
+	public static InterruptionException interrupted() {
+		return new InterruptionException("Execution interrupted");
+	}
+
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		
+		if (NBCTestExceptionMode.isStackTraceEnabled()) {
+			return super.fillInStackTrace();
+		}
+		return this;
+	}
+
 }
@@ -62,4 +62,17 @@ public abstract class NBCTestException extends Exception implements Serializable
         super(cause);
     }
 
+    /**
+     * Captures the stack trace only, if enabled by {@link NBCTestExceptionMode}.
+     * 
+     * @return this exception
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        if (NBCTestExceptionMode.isStackTraceEnabled()) {
+            return super.fillInStackTrace();
+        }
+        return this;
+    }
+
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.exception;
+
+import java.util.Map;
+
+import org.nabucco.framework.base.facade.datatype.logger.NabuccoLogger;
+import org.nabucco.framework.base.facade.datatype.logger.NabuccoLoggingFactory;
+
+/**
+ * NBCTestExceptionMode
+ * 
+ * Controls whether the exceptions of the engine capture their stack trace. Capturing the stack
+ * trace is the main cost of exceptions thrown for control flow, such as interruptions and
+ * unresolved property references. Stack traces are captured by default and always, if debug
+ * logging is enabled.
+ * 
+ * @author agent
+ */
+public final class NBCTestExceptionMode {
+
+    /**
+     * Name of the system or engine property enabling stack traces, default is 'true'.
+     */
+    public static final String STACK_TRACE_PROPERTY = "nbc.test.exception.stacktrace";
+
+    private static final NabuccoLogger logger = NabuccoLoggingFactory.getInstance().getLogger(
+            NBCTestExceptionMode.class);
+
+    private static volatile boolean stackTraceEnabled = !Boolean.FALSE.toString().equalsIgnoreCase(
+            System.getProperty(STACK_TRACE_PROPERTY));
+
+    private NBCTestExceptionMode() {
+    }
+
+    /**
+     * Checks whether exceptions capture their stack trace.
+     * 
+     * @return true, if stack traces are enabled or debug logging is enabled
+     */
+    public static boolean isStackTraceEnabled() {
+        return stackTraceEnabled || logger.isDebugEnabled();
+    }
+
+    /**
+     * Enables or disables capturing of stack traces.
+     * 
+     * @param enabled
+     *            true, to capture stack traces
+     */
+    public static void setStackTraceEnabled(boolean enabled) {
+        stackTraceEnabled = enabled;
+    }
+
+    /**
+     * Configures the mode from the given engine properties. Nothing is changed, if the property is
+     * not set.
+     * 
+     * @param properties
+     *            the engine properties
+     */
+    public static void configure(Map<?, ?> properties) {
+        Object value = properties.get(STACK_TRACE_PROPERTY);
+
+        if (value != null) {
+            setStackTraceEnabled(!Boolean.FALSE.toString().equalsIgnoreCase(value.toString().trim()));
+        }
+    }
+
+}
@@ -16,25 +16,17 @@
  */
 package org.nabucco.testautomation.engine.base.util;
 
-import java.math.BigDecimal;
+import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 
 import org.nabucco.testautomation.engine.base.context.TestContext;
 import org.nabucco.testautomation.engine.base.exception.PropertyException;
-import org.nabucco.testautomation.property.facade.datatype.BooleanProperty;
-import org.nabucco.testautomation.property.facade.datatype.DateProperty;
-import org.nabucco.testautomation.property.facade.datatype.FileProperty;
-import org.nabucco.testautomation.property.facade.datatype.NumericProperty;
-import org.nabucco.testautomation.property.facade.datatype.SqlProperty;
-import org.nabucco.testautomation.property.facade.datatype.TextProperty;
-import org.nabucco.testautomation.property.facade.datatype.XPathProperty;
-import org.nabucco.testautomation.property.facade.datatype.XmlProperty;
-import org.nabucco.testautomation.property.facade.datatype.base.Property;
 import org.nabucco.testautomation.property.facade.datatype.base.PropertyComposite;
-import org.nabucco.testautomation.property.facade.datatype.base.PropertyContainer;
-import org.nabucco.testautomation.property.facade.datatype.base.PropertyReference;
 import org.nabucco.testautomation.property.facade.datatype.util.PropertyHelper;
 
 /**
@@ -44,14 +36,25 @@ import org.nabucco.testautomation.property.facade.datatype.util.PropertyHelper;
  */
 public abstract class ContextHelper {
 
-    private static final String EMPTY_STRING = "";
+    private static final int DATE_CACHE_SIZE = 256;
+
+    private static final ThreadLocal<DateFormat> DATE_FORMAT = new ThreadLocal<DateFormat>() {
+
+        @Override
+        protected DateFormat initialValue() {
+            return new SimpleDateFormat(PropertyHelper.DEFAULT_DATE_PATTERN);
+        }
+    };
+
+    private static final ConcurrentMap<String, Long> DATE_CACHE = new ConcurrentHashMap<String, Long>();
 
     private ContextHelper() {
     }
 
     /**
      * Iterates over the given {@link PropertyComposite} and recursively replaces all references
-     * with values from the given {@link TestContext}.
+     * with values from the given {@link TestContext}. The references are found once and replayed on
+     * later calls, see {@link PropertyResolutionPlan#getPlan(PropertyComposite, boolean)}.
      * 
      * @param properties
      *            the PropertyComposite to iterate over
@@ -65,61 +68,102 @@ public abstract class ContextHelper {
         if (properties == null || ctx == null) {
             return;
         }
+        PropertyResolutionPlan.getPlan(properties, false).resolve(ctx);
+    }
 
-        for (PropertyContainer container : properties.getPropertyList()) {
-            Property property = container.getProperty();
-            PropertyReference reference = property.getReference();
-
-            if (reference != null && reference.getValue() != null && !reference.getValue().equals(EMPTY_STRING)) {
-                Property referencedProperty = ctx.getProperty(reference);
-
-                if (referencedProperty == null) {
-                    throw new PropertyException("PropertyReference '" + reference + "' could not be resolved.");
-                } 
-                
-                switch (property.getType()) {
-                case TEXT:
-                    ((TextProperty) property).setValue(PropertyHelper.toString(referencedProperty));
-                    break;
-                case SQL:
-                    ((SqlProperty) property).setValue(PropertyHelper.toString(referencedProperty));
-                    break;
-                case XML:
-                    ((XmlProperty) property).setValue(PropertyHelper.toString(referencedProperty));
-                    break;
-                case XPATH:
-                    ((XPathProperty) property).setValue(PropertyHelper.toString(referencedProperty));
-                    break;
-                case BOOLEAN:
-                    ((BooleanProperty) property).setValue(Boolean.parseBoolean(PropertyHelper.toString(referencedProperty)));
-                    break;
-                case NUMERIC:
-                    ((NumericProperty) property).setValue(new BigDecimal(PropertyHelper.toString(referencedProperty)));
-                    break;
-                case DATE:
-                    ((DateProperty) property).setValue(parseDate(PropertyHelper.toString(referencedProperty)));
-                    break;
-                case FILE:
-                    ((FileProperty) property).setContent(PropertyHelper.toString(referencedProperty));
-                    break;
-                case LIST:
-                    Property clonedProperty = referencedProperty.cloneObject();
-                    clonedProperty.setName(property.getName().getValueAsString());
-                    container.setProperty(clonedProperty);
-                    break;
-                }
-            } else if (property instanceof PropertyComposite) {
-                resolvePropertyRefs((PropertyComposite) property, ctx);
-            }
+    /**
+     * Iterates over the given {@link PropertyComposite} and recursively replaces all references
+     * with values from the given {@link TestContext}. Referenced lists may be shared instead of
+     * cloned, the resolved lists then hold the very same rows as the lists in the context and must
+     * be treated as read-only.
+     * 
+     * @param properties
+     *            the PropertyComposite to iterate over
+     * @param ctx
+     *            the TestContext
+     * @param shareLists
+     *            true, if referenced lists are shared instead of cloned
+     * @throws PropertyException
+     *             thrown, if an error occurs, e.g. if an PropertyReference cannot be resolved
+     */
+    public static void resolvePropertyRefs(PropertyComposite properties, TestContext ctx, boolean shareLists)
+            throws PropertyException {
+
+        if (properties == null || ctx == null) {
+            return;
         }
+        PropertyResolutionPlan.getPlan(properties, shareLists).resolve(ctx);
     }
-    
-    private static Date parseDate(String dateString) throws PropertyException {
-        try {
-            return new SimpleDateFormat(PropertyHelper.DEFAULT_DATE_PATTERN).parse(dateString);
-        } catch (ParseException e) {
+
+    /**
+     * Iterates over the given {@link PropertyComposite} and replaces all references with values
+     * from the given {@link TestContext}. Composites with at least
+     * {@link PropertyResolutionPlan#DEFAULT_PARALLEL_THRESHOLD} references are resolved in
+     * parallel by the given executor, smaller ones sequentially.
+     * 
+     * @param properties
+     *            the PropertyComposite to iterate over
+     * @param ctx
+     *            the TestContext
+     * @param executor
+     *            the executor resolving the references
+     * @throws PropertyException
+     *             thrown, if an error occurs, e.g. if an PropertyReference cannot be resolved
+     */
+    public static void resolvePropertyRefs(PropertyComposite properties, TestContext ctx, ExecutorService executor)
+            throws PropertyException {
+
+        if (properties == null || ctx == null) {
+            return;
+        }
+        PropertyResolutionPlan.getPlan(properties, false).resolve(ctx, executor,
+                PropertyResolutionPlan.DEFAULT_PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * Compiles the {@link PropertyResolutionPlan} of the given {@link PropertyComposite}. The plan
+     * may be kept by the caller and resolved repeatedly without walking the composite again.
+     * 
+     * @param properties
+     *            the PropertyComposite to compile
+     * @return the compiled plan
+     */
+    public static PropertyResolutionPlan compile(PropertyComposite properties) {
+        return PropertyResolutionPlan.compile(properties);
+    }
+
+    /**
+     * Parses the given date string with the {@link PropertyHelper#DEFAULT_DATE_PATTERN}. The
+     * format is kept per thread and recently parsed strings are memorized, so repeated dates are
+     * not parsed again.
+     * 
+     * @param dateString
+     *            the string to parse
+     * @return the parsed date
+     * @throws PropertyException
+     *             thrown, if the string cannot be parsed
+     */
+    static Date parseDate(String dateString) throws PropertyException {
+
+        if (dateString == null) {
             throw new PropertyException("Could not parse date string: " + dateString);
         }
+
+        Long time = DATE_CACHE.get(dateString);
+
+        if (time == null) {
+            try {
+                time = DATE_FORMAT.get().parse(dateString).getTime();
+            } catch (ParseException e) {
+                throw new PropertyException("Could not parse date string: " + dateString);
+            }
+
+            if (DATE_CACHE.size() >= DATE_CACHE_SIZE) {
+                DATE_CACHE.clear();
+            }
+            DATE_CACHE.put(dateString, time);
+        }
+        return new Date(time);
     }
     
 }
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.nabucco.framework.base.facade.datatype.logger.NabuccoLogger;
+import org.nabucco.framework.base.facade.datatype.logger.NabuccoLoggingFactory;
+import org.nabucco.testautomation.result.facade.datatype.TestResult;
+
+/**
+ * FileTestResultSink
+ * 
+ * Appends finished results to a file. Each result is written as an independent record of its
+ * length followed by its serialized form, so that a single result can be read back by the file
+ * offset stored in its summary. A record is serialized completely before it is written at the end
+ * of the file. If writing fails, the file is truncated back to the start of the record.
+ * 
+ * @author agent
+ */
+public class FileTestResultSink implements TestResultSink {
+
+    private static final NabuccoLogger logger = NabuccoLoggingFactory.getInstance().getLogger(
+            FileTestResultSink.class);
+
+    private static final int LENGTH_SIZE = 4;
+
+    private final File file;
+
+    private final RandomAccessFile raf;
+
+    private final FileChannel channel;
+
+    private final List<TestResultSummary> summaries = new ArrayList<TestResultSummary>();
+
+    private long position;
+
+    private boolean closed;
+
+    /**
+     * Creates a new sink writing to the given file. An existing file is overwritten.
+     * 
+     * @param file
+     *            the file to write
+     * @throws IOException
+     *             thrown, if the file cannot be created
+     */
+    public FileTestResultSink(File file) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.raf.setLength(0);
+        this.channel = this.raf.getChannel();
+    }
+
+    @Override
+    public synchronized TestResultSummary write(TestResult result) throws IOException {
+
+        if (this.closed) {
+            throw new IOException("Sink " + this.file + " is closed.");
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(buffer);
+        oos.writeObject(result);
+        oos.close();
+
+        TestResultSummary summary = new TestResultSummary(result, this.position);
+
+        ByteBuffer record = ByteBuffer.allocate(LENGTH_SIZE + buffer.size());
+        record.putInt(buffer.size());
+        record.put(buffer.toByteArray());
+        record.flip();
+
+        try {
+            while (record.hasRemaining()) {
+                this.channel.write(record, this.position + record.position());
+            }
+        } catch (IOException e) {
+            this.truncate();
+            throw e;
+        }
+
+        this.position += record.limit();
+        this.summaries.add(summary);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Wrote " + summary + " with " + buffer.size() + " bytes to " + this.file);
+        }
+        return summary;
+    }
+
+    /**
+     * Removes a partially written record.
+     */
+    private void truncate() {
+        try {
+            this.channel.truncate(this.position);
+        } catch (IOException e) {
+            logger.error(e, "Could not remove partial record at " + this.position + " of " + this.file);
+        }
+    }
+
+    @Override
+    public TestResult read(TestResultSummary summary) throws IOException {
+        this.flush();
+
+        RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+
+        try {
+            raf.seek(summary.getLocation());
+            byte[] data = new byte[raf.readInt()];
+            raf.readFully(data);
+
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+            return (TestResult) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Cannot read " + summary + ": " + e.getMessage());
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Override
+    public synchronized List<TestResultSummary> getSummaries() {
+        return Collections.unmodifiableList(new ArrayList<TestResultSummary>(this.summaries));
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        // Records are written to the file directly, nothing is buffered
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!this.closed) {
+            this.closed = true;
+            this.channel.close();
+            this.raf.close();
+        }
+    }
+
+    /**
+     * Gets the written file.
+     * 
+     * @return the file
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+}
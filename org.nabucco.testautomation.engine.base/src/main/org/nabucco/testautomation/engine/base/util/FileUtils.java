@@ -17,13 +17,38 @@
 package org.nabucco.testautomation.engine.base.util;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FileReader;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.nabucco.framework.base.facade.datatype.logger.NabuccoLogger;
+import org.nabucco.framework.base.facade.datatype.logger.NabuccoLoggingFactory;
 import org.nabucco.testautomation.engine.base.config.NBCTestProperties;
+import org.nabucco.testautomation.engine.base.config.NBCTestPropertiesCache;
 
 
 /**
@@ -34,6 +59,16 @@ import org.nabucco.testautomation.engine.base.config.NBCTestProperties;
  */
 public final class FileUtils {
 
+    private static final NabuccoLogger logger = NabuccoLoggingFactory.getInstance().getLogger(FileUtils.class);
+
+    private static final String DELETE_SUFFIX = ".deleted-";
+
+    private static final Set<File> PENDING_DELETES = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+    private static final int DELETE_THREADS = 2;
+
+    private static final ThreadPoolExecutor DELETE_EXECUTOR = createDeleteExecutor();
+
     private FileUtils() {
     }
 
@@ -84,10 +119,32 @@ public final class FileUtils {
     public static final NBCTestProperties getProperties(File path, String propFile)
             throws IOException {
         NBCTestProperties props = new NBCTestProperties();
-        props.load(new FileReader(new File(path, propFile)));
+        FileReader reader = new FileReader(new File(path, propFile));
+
+        try {
+            props.load(reader);
+        } finally {
+            reader.close();
+        }
         return props;
     }
 
+    /**
+     * Gets the cached properties of a given file from a given path. The file is parsed once and
+     * reloaded in the background when it is modified.
+     * 
+     * @param path
+     *            the source path
+     * @param propFile
+     *            the property-file
+     * @return the cache holding the current properties of the file
+     * @throws IOException
+     *             thrown, if the source file does not exist or cannot be read
+     */
+    public static final NBCTestPropertiesCache getCachedProperties(File path, String propFile) throws IOException {
+        return NBCTestPropertiesCache.getCache(new File(path, propFile));
+    }
+
     /**
      * Finds all files in a given path and adds them to a given list. The operation may also iterate
      * through all subdirectories.
@@ -100,14 +157,83 @@ public final class FileUtils {
      *            if true, then all subdirectories will also be used for searching
      */
     public static final void addFilesToList(File rootPath, List<File> list, boolean deep) {
-        File[] files = rootPath.listFiles();
+        addFilesToList(rootPath, list, deep, null);
+    }
 
-        for (File file : files) {
-            if (file.isFile()) {
-                list.add(file);
-            } else if (file.isDirectory() && deep) {
-                addFilesToList(file, list, deep);
+    /**
+     * Finds all files in a given path accepted by the given filter and adds them to a given list.
+     * The filter is only applied to files, subdirectories are always searched when deep is true.
+     * Directories that cannot be read are skipped.
+     * 
+     * @param rootPath
+     *            the path to search
+     * @param list
+     *            the list to add the files to
+     * @param deep
+     *            if true, then all subdirectories will also be used for searching
+     * @param filter
+     *            the filter for the files to add, may be null
+     */
+    public static final void addFilesToList(File rootPath, List<File> list, boolean deep, FileFilter filter) {
+        for (File file : iterateFiles(rootPath, deep, filter)) {
+            list.add(file);
+        }
+    }
+
+    /**
+     * Lazily iterates over all files in a given path accepted by the given filter. Directories are
+     * listed one at a time while iterating, so callers may start processing before the whole tree
+     * is enumerated. Directories that cannot be read are skipped.
+     * 
+     * @param rootPath
+     *            the path to iterate
+     * @param deep
+     *            if true, then all subdirectories will also be iterated
+     * @param filter
+     *            the filter for the files to return, may be null
+     * @return the lazy iterable over the files
+     */
+    public static final Iterable<File> iterateFiles(final File rootPath, final boolean deep, final FileFilter filter) {
+        return new Iterable<File>() {
+
+            @Override
+            public Iterator<File> iterator() {
+                return new FileIterator(rootPath, deep, filter);
             }
+        };
+    }
+
+    /**
+     * Finds all files in a given path and its subdirectories accepted by the given filter. The
+     * directories are listed concurrently by the given number of threads, the order of the
+     * returned files is therefore undefined. Directories that cannot be read are skipped.
+     * 
+     * @param rootPath
+     *            the path to search
+     * @param filter
+     *            the filter for the files to return, may be null
+     * @param parallelism
+     *            the number of threads listing directories
+     * @return the list of files
+     * @throws InterruptedException
+     *             thrown, if the calling thread is interrupted while waiting for the search
+     */
+    public static final List<File> findFiles(File rootPath, FileFilter filter, int parallelism)
+            throws InterruptedException {
+
+        if (rootPath == null) {
+            return new ArrayList<File>();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+
+        try {
+            ParallelFileScan scan = new ParallelFileScan(executor, filter);
+            scan.submit(rootPath);
+            scan.await();
+            return scan.getFiles();
+        } finally {
+            executor.shutdownNow();
         }
     }
 
@@ -126,15 +252,422 @@ public final class FileUtils {
             root.delete();
         } else if (root.isDirectory()) {
             File[] files = root.listFiles();
-            for (File file : files) {
-                if (file.isDirectory()) {
-                    delete(file);
-                } else {
-                    file.delete();
+
+            if (files != null) {
+                for (File file : files) {
+                    if (file.isDirectory()) {
+                        delete(file);
+                    } else {
+                        file.delete();
+                    }
                 }
             }
             root.delete();
         }
     }
 
+    /**
+     * Deletes a given file or path and all of its subdirectories. The directories are listed and
+     * their files deleted concurrently by the given number of threads.
+     * 
+     * @param root
+     *            the file or path to be deleted
+     * @param parallelism
+     *            the number of threads deleting files
+     * @return the files and directories which could not be deleted, an empty list on success
+     * @throws InterruptedException
+     *             thrown, if the calling thread is interrupted while waiting for the deletion
+     */
+    public static final List<File> delete(File root, int parallelism) throws InterruptedException {
+        List<File> failures = new ArrayList<File>();
+
+        if (root == null || !root.exists()) {
+            return failures;
+        }
+
+        if (!root.isDirectory() || isSymbolicLink(root)) {
+            if (!root.delete()) {
+                failures.add(root);
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+
+            try {
+                ParallelDelete delete = new ParallelDelete(executor);
+                delete.submit(root);
+                delete.await();
+                failures.addAll(delete.deleteDirectories());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        for (File failure : failures) {
+            logger.warning("Could not delete " + failure.getAbsolutePath());
+        }
+        return failures;
+    }
+
+    /**
+     * Deletes a given file or path and all of its subdirectories in the background. The root is
+     * renamed first, so its original location is free again when this method returns. The
+     * deletions of all callers share a small pool of background threads. Renamed trees left
+     * behind by a deletion that did not finish, e.g. because the JVM exited, are not touched; use
+     * {@link #sweepDeleted(File, int)} to remove them.
+     * 
+     * @param root
+     *            the file or path to be deleted
+     * @param parallelism
+     *            the number of threads deleting files
+     * @return the future result of {@link #delete(File, int)}
+     */
+    public static final Future<List<File>> deleteAsync(File root, final int parallelism) {
+        File target = root;
+        final File parent = root != null ? root.getAbsoluteFile().getParentFile() : null;
+
+        if (root != null && root.exists()) {
+            File renamed = new File(parent, root.getName() + DELETE_SUFFIX + System.nanoTime());
+
+            if (root.renameTo(renamed)) {
+                target = renamed;
+            } else {
+                logger.warning("Could not rename " + root.getAbsolutePath() + " before deletion");
+            }
+        }
+
+        final File toDelete = target;
+
+        if (toDelete != null) {
+            PENDING_DELETES.add(toDelete.getAbsoluteFile());
+        }
+
+        return DELETE_EXECUTOR.submit(new Callable<List<File>>() {
+
+            @Override
+            public List<File> call() throws Exception {
+                try {
+                    return delete(toDelete, parallelism);
+                } finally {
+                    if (toDelete != null) {
+                        PENDING_DELETES.remove(toDelete.getAbsoluteFile());
+                    }
+                }
+            }
+        });
+    }
+
+    private static ThreadPoolExecutor createDeleteExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(DELETE_THREADS, DELETE_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "FileUtils-delete");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Deletes all trees in the given directory renamed by {@link #deleteAsync(File, int)}, whose
+     * deletion did not finish, e.g. because the JVM exited. Should be called at startup for
+     * directories cleaned up asynchronously. Trees currently deleted by this JVM are skipped, but
+     * deletions in progress in other JVMs are not detected. Every entry named like
+     * <code>name.deleted-&lt;digits&gt;</code> is deleted, so the directory must not hold other
+     * files named that way.
+     * 
+     * @param directory
+     *            the directory containing the renamed trees
+     * @param parallelism
+     *            the number of threads deleting files
+     * @return the files that could not be deleted
+     * @throws InterruptedException
+     *             thrown, if interrupted while waiting for the deletion
+     */
+    public static final List<File> sweepDeleted(File directory, int parallelism) throws InterruptedException {
+        List<File> failures = new ArrayList<File>();
+        File[] files = directory.listFiles();
+
+        if (files == null) {
+            return failures;
+        }
+
+        for (File file : files) {
+            if (isDeleted(file) && !PENDING_DELETES.contains(file.getAbsoluteFile())) {
+
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Deleting stale " + file.getAbsolutePath());
+                }
+                failures.addAll(delete(file, parallelism));
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Checks whether the given file is a symbolic link by comparing its canonical path with the
+     * canonical path of its parent.
+     */
+    private static boolean isSymbolicLink(File file) {
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            File resolved = parent == null ? file.getAbsoluteFile() : new File(parent.getCanonicalFile(), file
+                    .getName());
+            return !resolved.getCanonicalFile().equals(resolved.getAbsoluteFile());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks whether the given file is a tree renamed by {@link #deleteAsync(File, int)}.
+     */
+    private static boolean isDeleted(File file) {
+        String name = file.getName();
+        int index = name.lastIndexOf(DELETE_SUFFIX);
+
+        if (index <= 0 || index + DELETE_SUFFIX.length() == name.length()) {
+            return false;
+        }
+        for (int i = index + DELETE_SUFFIX.length(); i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Iterator listing directories on demand, in the same order as a recursive traversal.
+     */
+    private static final class FileIterator implements Iterator<File> {
+
+        private final LinkedList<Iterator<File>> stack = new LinkedList<Iterator<File>>();
+
+        private final boolean deep;
+
+        private final FileFilter filter;
+
+        private File next;
+
+        private FileIterator(File rootPath, boolean deep, FileFilter filter) {
+            this.deep = deep;
+            this.filter = filter;
+
+            if (rootPath != null) {
+                this.push(rootPath);
+            }
+        }
+
+        private void push(File directory) {
+            File[] children = directory.listFiles();
+
+            if (children != null) {
+                this.stack.addFirst(Arrays.asList(children).iterator());
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (this.next == null && !this.stack.isEmpty()) {
+                Iterator<File> current = this.stack.getFirst();
+
+                if (!current.hasNext()) {
+                    this.stack.removeFirst();
+                    continue;
+                }
+
+                File child = current.next();
+
+                if (child.isFile()) {
+                    if (this.filter == null || this.filter.accept(child)) {
+                        this.next = child;
+                    }
+                } else if (child.isDirectory() && this.deep) {
+                    this.push(child);
+                }
+            }
+            return this.next != null;
+        }
+
+        @Override
+        public File next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            File file = this.next;
+            this.next = null;
+            return file;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Concurrent directory walk, where each directory is listed by a separate task.
+     */
+    private abstract static class ParallelFileWalk {
+
+        private final ExecutorService executor;
+
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private ParallelFileWalk(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        /**
+         * Called concurrently for each file found.
+         */
+        protected abstract void visitFile(File file);
+
+        /**
+         * Called concurrently for each directory after it has been listed.
+         */
+        protected void visitDirectory(File directory) {
+        }
+
+        /**
+         * Called concurrently for each subdirectory found. Subdirectories not descended into are
+         * visited as files.
+         */
+        protected boolean descend(File directory) {
+            return true;
+        }
+
+        /**
+         * Called concurrently for each directory that cannot be listed.
+         */
+        protected void visitFailed(File directory) {
+        }
+
+        protected void submit(final File directory) {
+            this.pending.incrementAndGet();
+            this.executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        walk(directory);
+                    } finally {
+                        if (pending.decrementAndGet() == 0) {
+                            done.countDown();
+                        }
+                    }
+                }
+            });
+        }
+
+        private void walk(File directory) {
+            File[] children = directory.listFiles();
+
+            if (children == null) {
+                this.visitFailed(directory);
+                return;
+            }
+
+            for (File child : children) {
+                if (child.isDirectory() && this.descend(child)) {
+                    this.submit(child);
+                } else {
+                    this.visitFile(child);
+                }
+            }
+            this.visitDirectory(directory);
+        }
+
+        protected void await() throws InterruptedException {
+            this.done.await();
+        }
+    }
+
+    /**
+     * Concurrent scan collecting all files accepted by a filter.
+     */
+    private static final class ParallelFileScan extends ParallelFileWalk {
+
+        private final FileFilter filter;
+
+        private final Queue<File> files = new ConcurrentLinkedQueue<File>();
+
+        private ParallelFileScan(ExecutorService executor, FileFilter filter) {
+            super(executor);
+            this.filter = filter;
+        }
+
+        @Override
+        protected void visitFile(File file) {
+            if (file.isFile() && (this.filter == null || this.filter.accept(file))) {
+                this.files.add(file);
+            }
+        }
+
+        private List<File> getFiles() {
+            return new ArrayList<File>(this.files);
+        }
+    }
+
+    /**
+     * Concurrent delete, removing all files first and the emptied directories deepest first.
+     * Symbolic links to directories are removed without deleting the content of their target.
+     */
+    private static final class ParallelDelete extends ParallelFileWalk {
+
+        private final Queue<File> directories = new ConcurrentLinkedQueue<File>();
+
+        private final Queue<File> failures = new ConcurrentLinkedQueue<File>();
+
+        private ParallelDelete(ExecutorService executor) {
+            super(executor);
+        }
+
+        @Override
+        protected void visitFile(File file) {
+            if (!file.delete() && file.exists()) {
+                this.failures.add(file);
+            }
+        }
+
+        @Override
+        protected boolean descend(File directory) {
+            return !isSymbolicLink(directory);
+        }
+
+        @Override
+        protected void visitDirectory(File directory) {
+            this.directories.add(directory);
+        }
+
+        @Override
+        protected void visitFailed(File directory) {
+            this.failures.add(directory);
+        }
+
+        private List<File> deleteDirectories() {
+            List<File> sorted = new ArrayList<File>(this.directories);
+            Collections.sort(sorted, new Comparator<File>() {
+
+                @Override
+                public int compare(File f1, File f2) {
+                    return f2.getAbsolutePath().length() - f1.getAbsolutePath().length();
+                }
+            });
+
+            for (File directory : sorted) {
+                if (!directory.delete() && directory.exists()) {
+                    this.failures.add(directory);
+                }
+            }
+            return new ArrayList<File>(this.failures);
+        }
+    }
+
 }
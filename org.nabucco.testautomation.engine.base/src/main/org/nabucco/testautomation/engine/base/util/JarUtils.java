@@ -89,6 +89,27 @@ public final class JarUtils {
         jin.close();
     }
 
+    /**
+     * Creates a {@link NestedJarClassLoader} serving the nested jar-files of the given jar-file
+     * accepted by the given filter, as well as the resources of the jar-file itself, directly from
+     * memory. In contrast to {@link #extractFiles(File, File, FileFilter)} nothing is written to
+     * disk.
+     * 
+     * @param jarFile
+     *            the jar-file containing the nested jar-files
+     * @param filter
+     *            the file filter to select the nested jar-files
+     * @param parent
+     *            the parent ClassLoader
+     * @return the new ClassLoader
+     * @throws IOException
+     *             thrown, if the jar-file cannot be read
+     */
+    public static final NestedJarClassLoader createClassLoader(File jarFile, FileFilter filter, ClassLoader parent)
+            throws IOException {
+        return new NestedJarClassLoader(jarFile, filter, parent);
+    }
+
     /**
      * Reads an entry from a JarInputStream and stores it in the given targetFile.
      * 
@@ -0,0 +1,523 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import org.nabucco.framework.base.facade.datatype.logger.NabuccoLogger;
+import org.nabucco.framework.base.facade.datatype.logger.NabuccoLoggingFactory;
+
+/**
+ * NestedJarClassLoader
+ *
+ * ClassLoader serving classes and resources of jar-files nested in an outer jar-file directly
+ * from the archive, without extracting them to disk. The outer jar-file is memory-mapped and the
+ * central directories of the outer and the nested jar-files are indexed by entry name once on
+ * construction. Only the offsets of the entries are kept, their content is inflated on each
+ * access. Nested jar-files stored uncompressed are read from the mapping, compressed nested
+ * jar-files are inflated once into memory, their entries stay compressed.
+ * <p>
+ * As on a classpath, classes and resources are looked up in the nested jar-files in their order
+ * within the outer jar-file, followed by the outer jar-file itself. {@link #getResources(String)}
+ * returns the entries of all jar-files, e.g. all <code>META-INF/services</code> files.
+ *
+ * @author agent
+ */
+public class NestedJarClassLoader extends ClassLoader {
+
+    private static final NabuccoLogger logger = NabuccoLoggingFactory.getInstance().getLogger(
+            NestedJarClassLoader.class);
+
+    private static final String JAR_FILE_SUFFIX = ".jar";
+
+    private static final String CLASS_FILE_SUFFIX = ".class";
+
+    private static final String PROTOCOL = "nestedjar";
+
+    private static final String SLASH = "/";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Encoding of entry names without the language encoding flag, as defined by the zip format. */
+    private static final Charset LEGACY = Charset.isSupported("IBM437") ? Charset.forName("IBM437") : Charset
+            .defaultCharset();
+
+    /** General purpose flag marking UTF-8 encoded entry names. */
+    private static final int UTF8_FLAG = 1 << 11;
+
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+
+    private static final int END_SIZE = 22;
+
+    private static final int CENTRAL_HEADER_SIZE = 46;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private final String jarName;
+
+    private volatile Map<String, List<Entry>> entries;
+
+    private final URLStreamHandler handler = new NestedJarURLStreamHandler();
+
+    /**
+     * Creates a new NestedJarClassLoader indexing all nested jar-files of the given jar-file
+     * accepted by the given filter.
+     *
+     * @param jarFile
+     *            the outer jar-file
+     * @param filter
+     *            the file filter to select the nested jar-files
+     * @param parent
+     *            the parent ClassLoader
+     * @throws IOException
+     *             thrown, if the jar-file cannot be read
+     */
+    public NestedJarClassLoader(File jarFile, FileFilter filter, ClassLoader parent) throws IOException {
+        super(parent);
+        this.jarName = jarFile.getPath();
+        this.entries = index(map(jarFile), filter);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Indexed " + this.entries.size() + " entries of " + this.jarName);
+        }
+    }
+
+    /**
+     * Maps the given file read-only into memory.
+     *
+     * @param file
+     *            the file to map
+     * @return the mapped file
+     * @throws IOException
+     *             thrown, if the file cannot be mapped
+     */
+    private static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            FileChannel channel = raf.getChannel();
+
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Jar-file " + file + " exceeds " + Integer.MAX_VALUE + " bytes");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Indexes the outer jar-file and all nested jar-files accepted by the given filter.
+     *
+     * @param outer
+     *            the mapped outer jar-file
+     * @param filter
+     *            the file filter
+     * @return the unmodifiable index
+     * @throws IOException
+     *             thrown, if a jar-file is corrupt
+     */
+    private static Map<String, List<Entry>> index(ByteBuffer outer, FileFilter filter) throws IOException {
+        Map<String, List<Entry>> index = new HashMap<String, List<Entry>>();
+        List<Entry> outerEntries = readCentralDirectory(outer);
+
+        for (Entry entry : outerEntries) {
+            if (entry.name.endsWith(JAR_FILE_SUFFIX) && (filter == null || filter.accept(new File(entry.name)))) {
+                ByteBuffer nested = entry.method == ZipEntry.STORED ? entry.slice() : ByteBuffer.wrap(entry.read());
+
+                for (Entry nestedEntry : readCentralDirectory(nested)) {
+                    add(index, nestedEntry);
+                }
+            }
+        }
+        for (Entry entry : outerEntries) {
+            add(index, entry);
+        }
+
+        for (Map.Entry<String, List<Entry>> mapEntry : index.entrySet()) {
+            mapEntry.setValue(Collections.unmodifiableList(mapEntry.getValue()));
+        }
+        return Collections.unmodifiableMap(index);
+    }
+
+    private static void add(Map<String, List<Entry>> index, Entry entry) {
+        List<Entry> list = index.get(entry.name);
+
+        if (list == null) {
+            list = new ArrayList<Entry>(1);
+            index.put(entry.name, list);
+        }
+        list.add(entry);
+    }
+
+    /**
+     * Reads the file entries of the central directory of the given zip archive.
+     *
+     * @param archive
+     *            the archive
+     * @return the file entries in archive order
+     * @throws IOException
+     *             thrown, if the archive is corrupt or a ZIP64 archive
+     */
+    private static List<Entry> readCentralDirectory(ByteBuffer archive) throws IOException {
+        ByteBuffer buffer = archive.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int end = buffer.limit() - END_SIZE;
+        int stop = Math.max(0, end - MAX_COMMENT_SIZE);
+
+        while (end >= stop && buffer.getInt(end) != END_SIGNATURE) {
+            end--;
+        }
+        if (end < stop) {
+            throw new IOException("Not a zip archive, end of central directory not found");
+        }
+
+        int count = buffer.getShort(end + 10) & 0xffff;
+        long offset = buffer.getInt(end + 16) & 0xffffffffL;
+
+        if (count == 0xffff || offset >= buffer.limit()) {
+            throw new IOException("ZIP64 archives are not supported");
+        }
+
+        List<Entry> list = new ArrayList<Entry>(count);
+        int position = (int) offset;
+
+        for (int i = 0; i < count; i++) {
+            if (buffer.getInt(position) != CENTRAL_SIGNATURE) {
+                throw new IOException("Corrupt central directory at offset " + position);
+            }
+
+            int flags = buffer.getShort(position + 8) & 0xffff;
+            int method = buffer.getShort(position + 10) & 0xffff;
+            int compressedSize = buffer.getInt(position + 20);
+            int size = buffer.getInt(position + 24);
+            int nameLength = buffer.getShort(position + 28) & 0xffff;
+            int extraLength = buffer.getShort(position + 30) & 0xffff;
+            int commentLength = buffer.getShort(position + 32) & 0xffff;
+            int localOffset = buffer.getInt(position + 42);
+
+            byte[] name = new byte[nameLength];
+            ByteBuffer nameBuffer = buffer.duplicate();
+            nameBuffer.position(position + CENTRAL_HEADER_SIZE);
+            nameBuffer.get(name);
+            String entryName = new String(name, (flags & UTF8_FLAG) != 0 ? UTF8 : LEGACY);
+
+            if (!entryName.endsWith(SLASH)) {
+                list.add(new Entry(entryName, buffer, method, localOffset, compressedSize, size));
+            }
+            position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return list;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        Entry entry = this.getEntry(name.replace('.', '/') + CLASS_FILE_SUFFIX, 0);
+
+        if (entry == null) {
+            throw new ClassNotFoundException(name);
+        }
+
+        byte[] data;
+        try {
+            data = entry.read();
+        } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+
+        this.definePackage(name);
+        return this.defineClass(name, data, 0, data.length);
+    }
+
+    /**
+     * Defines the package of the given class, if not already defined.
+     *
+     * @param className
+     *            the fully qualified class name
+     */
+    private void definePackage(String className) {
+        int index = className.lastIndexOf('.');
+
+        if (index == -1) {
+            return;
+        }
+
+        String packageName = className.substring(0, index);
+
+        if (this.getPackage(packageName) == null) {
+            try {
+                this.definePackage(packageName, null, null, null, null, null, null, null);
+            } catch (IllegalArgumentException e) {
+                // Defined concurrently
+            }
+        }
+    }
+
+    /**
+     * Gets the entry with the given name.
+     *
+     * @param name
+     *            the entry name
+     * @param index
+     *            the index of the jar-file among all jar-files containing the entry
+     * @return the entry or null, if not found
+     */
+    private Entry getEntry(String name, int index) {
+        List<Entry> list = this.entries.get(name);
+
+        if (list == null || index < 0 || index >= list.size()) {
+            return null;
+        }
+        return list.get(index);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected URL findResource(String name) {
+        return this.getEntry(name, 0) != null ? this.createURL(name, 0) : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Enumeration<URL> findResources(String name) throws IOException {
+        List<Entry> list = this.entries.get(name);
+
+        if (list == null) {
+            return Collections.enumeration(Collections.<URL> emptyList());
+        }
+
+        List<URL> urls = new ArrayList<URL>(list.size());
+        for (int i = 0; i < list.size(); i++) {
+            URL url = this.createURL(name, i);
+            if (url != null) {
+                urls.add(url);
+            }
+        }
+        return Collections.enumeration(urls);
+    }
+
+    /**
+     * Creates the URL of an entry. The path consists of the index of the jar-file among all
+     * jar-files containing the entry and the entry name.
+     */
+    private URL createURL(String name, int index) {
+        try {
+            return new URL(PROTOCOL, null, -1, SLASH + index + SLASH + name, this.handler);
+        } catch (MalformedURLException e) {
+            logger.error(e, "Could not create URL for resource " + name);
+            return null;
+        }
+    }
+
+    /**
+     * Opens the entry with the given name.
+     *
+     * @param name
+     *            the entry name
+     * @param index
+     *            the index of the jar-file among all jar-files containing the entry
+     * @return the input stream of the entry
+     * @throws IOException
+     *             thrown, if the entry does not exist or cannot be read
+     */
+    private InputStream openEntry(String name, int index) throws IOException {
+        Entry entry = this.getEntry(name, index);
+
+        if (entry == null) {
+            throw new FileNotFoundException(name);
+        }
+        return new ByteArrayInputStream(entry.read());
+    }
+
+    /**
+     * Releases the index and with it the mapping of the jar-file. The mapping is unmapped by the
+     * garbage collector.
+     */
+    public void close() {
+        this.entries = Collections.emptyMap();
+    }
+
+    /**
+     * A file entry of a zip archive.
+     */
+    private static final class Entry {
+
+        private final String name;
+
+        private final ByteBuffer archive;
+
+        private final int method;
+
+        private final int localOffset;
+
+        private final int compressedSize;
+
+        private final int size;
+
+        private Entry(String name, ByteBuffer archive, int method, int localOffset, int compressedSize, int size) {
+            this.name = name;
+            this.archive = archive;
+            this.method = method;
+            this.localOffset = localOffset;
+            this.compressedSize = compressedSize;
+            this.size = size;
+        }
+
+        /**
+         * Gets the raw data of the entry as view of the archive.
+         */
+        private ByteBuffer slice() throws IOException {
+            ByteBuffer buffer = this.archive.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buffer.getInt(this.localOffset) != LOCAL_SIGNATURE) {
+                throw new IOException("Corrupt local header of " + this.name);
+            }
+
+            int start = this.localOffset
+                    + LOCAL_HEADER_SIZE + (buffer.getShort(this.localOffset + 26) & 0xffff)
+                    + (buffer.getShort(this.localOffset + 28) & 0xffff);
+            buffer.position(start);
+            buffer.limit(start + this.compressedSize);
+            return buffer.slice();
+        }
+
+        /**
+         * Reads and inflates the content of the entry.
+         */
+        private byte[] read() throws IOException {
+            ByteBuffer raw = this.slice();
+            byte[] data = new byte[this.size];
+
+            if (this.method == ZipEntry.STORED) {
+                raw.get(data);
+                return data;
+            }
+            if (this.method != ZipEntry.DEFLATED) {
+                throw new IOException("Unsupported compression method " + this.method + " of " + this.name);
+            }
+
+            byte[] input = new byte[this.compressedSize];
+            raw.get(input);
+
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(input);
+                int offset = 0;
+                boolean dummy = false;
+
+                while (offset < data.length && !inflater.finished()) {
+                    int len = inflater.inflate(data, offset, data.length - offset);
+
+                    if (len == 0 && !inflater.finished()) {
+                        if (!inflater.needsInput() || dummy) {
+                            throw new ZipException("Unexpected end of entry " + this.name);
+                        }
+                        // Inflater without zlib header may need a trailing dummy byte, but only once
+                        inflater.setInput(new byte[1]);
+                        dummy = true;
+                    }
+                    offset += len;
+                }
+                if (offset != data.length) {
+                    throw new IOException("Truncated entry " + this.name);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt entry " + this.name + ": " + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+            return data;
+        }
+    }
+
+    /**
+     * URLStreamHandler opening the resources of this ClassLoader.
+     */
+    private final class NestedJarURLStreamHandler extends URLStreamHandler {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected URLConnection openConnection(URL url) throws IOException {
+            String path = url.getPath().substring(SLASH.length());
+            int separator = path.indexOf(SLASH);
+
+            if (separator == -1) {
+                throw new FileNotFoundException(url.toString());
+            }
+
+            final int index;
+            try {
+                index = Integer.parseInt(path.substring(0, separator));
+            } catch (NumberFormatException e) {
+                throw new FileNotFoundException(url.toString());
+            }
+            final String name = path.substring(separator + 1);
+
+            return new URLConnection(url) {
+
+                @Override
+                public void connect() throws IOException {
+                    this.connected = true;
+                }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    return NestedJarClassLoader.this.openEntry(name, index);
+                }
+            };
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.nabucco.framework.base.facade.datatype.OrderIndex;
+import org.nabucco.testautomation.result.facade.datatype.TestResultContainer;
+
+/**
+ * OrderIndexCounters
+ * 
+ * Hands out the order indices of the children added by {@link TestResultHelper}. Each parent has a
+ * counter, started after the largest order index of its children, so indices stay unique after
+ * children were removed, e.g. by streaming them to a sink. Parents are held weakly and by
+ * identity.
+ * 
+ * @author agent
+ */
+final class OrderIndexCounters {
+
+    private static final Map<WeakIdentityKey, int[]> counters = new HashMap<WeakIdentityKey, int[]>();
+
+    private static final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+    private OrderIndexCounters() {
+    }
+
+    /**
+     * Gets the order index for the next child of the given parent.
+     * 
+     * @param parent
+     *            the parent result
+     * @param children
+     *            the current children of the parent
+     * @return the next order index
+     */
+    static synchronized int next(Object parent, List<TestResultContainer> children) {
+        int[] counter = counter(parent, children);
+        return counter[0]++;
+    }
+
+    /**
+     * Starts the counter of the given parent, if not yet started. Must be called before children
+     * are removed, so the removed order indices are not handed out again.
+     * 
+     * @param parent
+     *            the parent result
+     * @param children
+     *            the current children of the parent
+     */
+    static synchronized void start(Object parent, List<TestResultContainer> children) {
+        counter(parent, children);
+    }
+
+    private static int[] counter(Object parent, List<TestResultContainer> children) {
+        expunge();
+
+        WeakIdentityKey key = new WeakIdentityKey(parent);
+        int[] counter = counters.get(key);
+
+        if (counter == null) {
+            counter = new int[] { children.size() };
+
+            for (TestResultContainer container : children) {
+                OrderIndex orderIndex = container.getOrderIndex();
+
+                if (orderIndex != null && orderIndex.getValue() != null) {
+                    counter[0] = Math.max(counter[0], orderIndex.getValue().intValue() + 1);
+                }
+            }
+            counters.put(new WeakIdentityKey(parent, queue), counter);
+        }
+        return counter;
+    }
+
+    private static void expunge() {
+        for (Object key = queue.poll(); key != null; key = queue.poll()) {
+            counters.remove(key);
+        }
+    }
+
+}
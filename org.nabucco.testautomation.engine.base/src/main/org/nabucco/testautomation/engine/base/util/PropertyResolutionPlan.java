@@ -0,0 +1,470 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.nabucco.testautomation.engine.base.context.PropertyKey;
+import org.nabucco.testautomation.engine.base.context.TestContext;
+import org.nabucco.testautomation.engine.base.exception.InterruptionException;
+import org.nabucco.testautomation.engine.base.exception.PropertyException;
+import org.nabucco.testautomation.property.facade.datatype.base.Property;
+import org.nabucco.testautomation.property.facade.datatype.base.PropertyComposite;
+import org.nabucco.testautomation.property.facade.datatype.base.PropertyContainer;
+import org.nabucco.testautomation.property.facade.datatype.base.PropertyReference;
+
+/**
+ * PropertyResolutionPlan
+ * 
+ * Compiled list of all {@link PropertyReference}s of a {@link PropertyComposite}. The composite
+ * tree is walked once on compilation, each reference is stored with its pre-bound lookup name and
+ * converter. Resolving the plan against a {@link TestContext} is then a loop over the slots. A
+ * plan stays valid as long as the structure of the composite is not modified.
+ * <p>
+ * References may also be resolved lazily, one {@link PropertyContainer} at a time on first
+ * access. Each slot remembers the version stamp of the referenced context property it was resolved
+ * with and is only resolved again once that property has been changed in the context. Only
+ * {@link TestContext#put(Property)}, {@link TestContext#merge(PropertyList)} and
+ * {@link TestContext#remove(Property)} of the referenced top-level property change its stamp.
+ * Modifications of the property in place, e.g. of a nested property of a referenced list, are not
+ * detected; call {@link #resolve(TestContext)} or put the property again after such a change.
+ * <p>
+ * {@link #getPlan(PropertyComposite, boolean)} caches the plan per composite. A cached plan is
+ * checked against the structure it was compiled from, i.e. the number of properties of each
+ * nested composite, the composite properties and the referencing properties, and compiled again
+ * if any of them changed. A property without reference that is replaced by one with a reference
+ * is not detected; compile the plan explicitly after such a change.
+ * 
+ * @author agent
+ */
+public final class PropertyResolutionPlan {
+
+    /**
+     * Default minimum number of references for parallel resolution.
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 64;
+
+    private static final String EMPTY_STRING = "";
+
+    private static final Map<WeakIdentityKey, PropertyResolutionPlan[]> cache = new HashMap<WeakIdentityKey, PropertyResolutionPlan[]>();
+
+    private static final ReferenceQueue<Object> cacheQueue = new ReferenceQueue<Object>();
+
+    private final List<Slot> slots;
+
+    private final List<Stamp> stamps;
+
+    private volatile Map<PropertyContainer, Slot> slotsByContainer;
+
+    private PropertyResolutionPlan(List<Slot> slots, List<Stamp> stamps) {
+        this.slots = slots;
+        this.stamps = stamps;
+    }
+
+    /**
+     * Gets the slots by their container. The map is only needed for lazy resolution and
+     * therefore created on first access.
+     */
+    private Map<PropertyContainer, Slot> getSlotsByContainer() {
+        Map<PropertyContainer, Slot> map = this.slotsByContainer;
+
+        if (map == null) {
+            map = new IdentityHashMap<PropertyContainer, Slot>();
+
+            for (Slot slot : this.slots) {
+                map.put(slot.container, slot);
+            }
+            this.slotsByContainer = map;
+        }
+        return map;
+    }
+
+    /**
+     * Compiles the plan for the given {@link PropertyComposite}.
+     * 
+     * @param properties
+     *            the PropertyComposite to compile
+     * @return the compiled plan
+     */
+    public static PropertyResolutionPlan compile(PropertyComposite properties) {
+        return compile(properties, false);
+    }
+
+    /**
+     * Compiles the plan for the given {@link PropertyComposite}.
+     * 
+     * @param properties
+     *            the PropertyComposite to compile
+     * @param shareLists
+     *            true, if referenced lists are resolved as read-only views sharing the rows of the
+     *            context list instead of deep clones
+     * @return the compiled plan
+     */
+    public static PropertyResolutionPlan compile(PropertyComposite properties, boolean shareLists) {
+
+        if (properties == null) {
+            return new PropertyResolutionPlan(Collections.<Slot> emptyList(), Collections.<Stamp> emptyList());
+        }
+
+        List<Slot> slots = new ArrayList<Slot>();
+        List<Stamp> stamps = new ArrayList<Stamp>();
+        stamps.add(new Stamp(null, properties));
+        compile(properties, slots, stamps, shareLists);
+        return new PropertyResolutionPlan(slots, stamps);
+    }
+
+    /**
+     * Gets the cached plan for the given {@link PropertyComposite}. The plan is compiled on first
+     * use and again, once the structure of the composite changed. Composites are held weakly.
+     * 
+     * @param properties
+     *            the PropertyComposite
+     * @param shareLists
+     *            true, if referenced lists are resolved as read-only views sharing the rows of the
+     *            context list instead of deep clones
+     * @return the compiled plan
+     */
+    public static PropertyResolutionPlan getPlan(PropertyComposite properties, boolean shareLists) {
+
+        if (properties == null) {
+            return compile(properties, shareLists);
+        }
+
+        int index = shareLists ? 1 : 0;
+
+        synchronized (cache) {
+            for (Object key = cacheQueue.poll(); key != null; key = cacheQueue.poll()) {
+                cache.remove(key);
+            }
+
+            PropertyResolutionPlan[] plans = cache.get(new WeakIdentityKey(properties));
+
+            if (plans == null) {
+                plans = new PropertyResolutionPlan[2];
+                cache.put(new WeakIdentityKey(properties, cacheQueue), plans);
+            }
+
+            if (plans[index] == null || !plans[index].isCurrent()) {
+                plans[index] = compile(properties, shareLists);
+            }
+            return plans[index];
+        }
+    }
+
+    /**
+     * Checks whether the composite still has the structure the plan was compiled from.
+     */
+    private boolean isCurrent() {
+
+        for (int i = 0; i < this.stamps.size(); i++) {
+            if (!this.stamps.get(i).isCurrent()) {
+                return false;
+            }
+        }
+        for (int i = 0; i < this.slots.size(); i++) {
+            Slot slot = this.slots.get(i);
+
+            if (slot.container.getProperty() != slot.target) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void compile(PropertyComposite properties, List<Slot> slots, List<Stamp> stamps,
+            boolean shareLists) {
+
+        for (PropertyContainer container : properties.getPropertyList()) {
+            Property property = container.getProperty();
+            PropertyReference reference = property.getReference();
+
+            if (reference != null && reference.getValue() != null && !reference.getValue().equals(EMPTY_STRING)) {
+                slots.add(new Slot(container, property, reference, ReferenceConverter.forType(property.getType(),
+                        shareLists)));
+            } else if (property instanceof PropertyComposite && !(property instanceof SharedPropertyList)) {
+                // Rows of shared views belong to the context and are never written
+                stamps.add(new Stamp(container, (PropertyComposite) property));
+                compile((PropertyComposite) property, slots, stamps, shareLists);
+            }
+        }
+    }
+
+    /**
+     * Replaces all references of the compiled composite with values from the given
+     * {@link TestContext}.
+     * 
+     * @param ctx
+     *            the TestContext
+     * @throws PropertyException
+     *             thrown, if an error occurs, e.g. if an PropertyReference cannot be resolved
+     */
+    public void resolve(TestContext ctx) throws PropertyException {
+
+        if (ctx == null) {
+            return;
+        }
+
+        for (int i = 0; i < this.slots.size(); i++) {
+            this.slots.get(i).resolve(ctx);
+        }
+    }
+
+    /**
+     * Replaces all references of the compiled composite with values from the given
+     * {@link TestContext}, using the given executor to resolve independent references in
+     * parallel. Plans with less references than the given threshold are resolved sequentially.
+     * The context must not be modified during resolution. If references fail, the exception of
+     * the first failing reference in plan order is thrown.
+     * 
+     * @param ctx
+     *            the TestContext
+     * @param executor
+     *            the executor resolving the references
+     * @param threshold
+     *            the minimum number of references for parallel resolution
+     * @throws PropertyException
+     *             thrown, if an error occurs, e.g. if an PropertyReference cannot be resolved
+     */
+    public void resolve(TestContext ctx, ExecutorService executor, int threshold) throws PropertyException {
+
+        if (ctx == null) {
+            return;
+        }
+
+        int size = this.slots.size();
+        int chunks = Math.min(Runtime.getRuntime().availableProcessors(), size);
+
+        if (executor == null || size < threshold || chunks < 2) {
+            this.resolve(ctx);
+            return;
+        }
+
+        int chunkSize = (size + chunks - 1) / chunks;
+        List<Future<Throwable>> futures = new ArrayList<Future<Throwable>>(chunks);
+
+        for (int from = 0; from < size; from += chunkSize) {
+            futures.add(executor.submit(new Chunk(ctx, from, Math.min(from + chunkSize, size))));
+        }
+
+        Throwable failure = null;
+
+        try {
+            for (Future<Throwable> future : futures) {
+                Throwable result = future.get();
+
+                if (failure == null) {
+                    failure = result;
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Future<Throwable> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptionException("Interrupted while resolving property references", e);
+        } catch (ExecutionException e) {
+            failure = e.getCause();
+        }
+
+        if (failure instanceof PropertyException) {
+            throw (PropertyException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new PropertyException(failure);
+        }
+    }
+
+    /**
+     * Resolves only those references of the compiled composite, whose referenced context property
+     * changed since they were last resolved. A change is only detected, if the referenced
+     * top-level property was put, merged or removed in the context, not if it was modified in place.
+     * 
+     * @param ctx
+     *            the TestContext
+     * @throws PropertyException
+     *             thrown, if an error occurs, e.g. if an PropertyReference cannot be resolved
+     */
+    public void resolveChanged(TestContext ctx) throws PropertyException {
+
+        if (ctx == null) {
+            return;
+        }
+
+        for (int i = 0; i < this.slots.size(); i++) {
+            Slot slot = this.slots.get(i);
+
+            if (!slot.isCurrent(ctx)) {
+                slot.resolve(ctx);
+            }
+        }
+    }
+
+    /**
+     * Lazily resolves the reference of the property held by the given container. The reference is
+     * resolved on first access and again only when the referenced top-level context property was
+     * put, merged or removed since. Modifications of the property in place, including its nested
+     * properties, do not invalidate the resolved value.
+     * 
+     * @param container
+     *            a container of the compiled composite
+     * @param ctx
+     *            the TestContext
+     * @return the resolved property of the container
+     * @throws PropertyException
+     *             thrown, if the PropertyReference cannot be resolved
+     */
+    public Property resolve(PropertyContainer container, TestContext ctx) throws PropertyException {
+
+        if (container == null) {
+            return null;
+        }
+
+        Slot slot = this.getSlotsByContainer().get(container);
+
+        if (slot != null && ctx != null && !slot.isCurrent(ctx)) {
+            slot.resolve(ctx);
+        }
+        return container.getProperty();
+    }
+
+    /**
+     * Gets the number of references in the compiled composite.
+     * 
+     * @return the number of references
+     */
+    public int size() {
+        return this.slots.size();
+    }
+
+    /**
+     * A consecutive range of slots resolved by one task. The task stops at the first failing slot
+     * of its range and returns the failure instead of throwing it.
+     */
+    private final class Chunk implements Callable<Throwable> {
+
+        private final TestContext ctx;
+
+        private final int from;
+
+        private final int to;
+
+        private Chunk(TestContext ctx, int from, int to) {
+            this.ctx = ctx;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Throwable call() {
+            try {
+                for (int i = this.from; i < this.to; i++) {
+                    slots.get(i).resolve(this.ctx);
+                }
+                return null;
+            } catch (PropertyException e) {
+                return e;
+            } catch (RuntimeException e) {
+                return e;
+            }
+        }
+    }
+
+    /**
+     * The structure of a composite walked on compilation.
+     */
+    private static final class Stamp {
+
+        private final PropertyContainer container;
+
+        private final PropertyComposite composite;
+
+        private final int size;
+
+        private Stamp(PropertyContainer container, PropertyComposite composite) {
+            this.container = container;
+            this.composite = composite;
+            this.size = composite.getPropertyList().size();
+        }
+
+        private boolean isCurrent() {
+            return (this.container == null || this.container.getProperty() == this.composite)
+                    && this.composite.getPropertyList().size() == this.size;
+        }
+    }
+
+    /**
+     * A single reference of the compiled composite.
+     */
+    private static final class Slot {
+
+        private final PropertyContainer container;
+
+        private volatile Property target;
+
+        private final PropertyReference reference;
+
+        private final PropertyKey referenceKey;
+
+        private final ReferenceConverter converter;
+
+        private TestContext resolvedContext;
+
+        private long resolvedVersion;
+
+        private Slot(PropertyContainer container, Property target, PropertyReference reference,
+                ReferenceConverter converter) {
+            this.container = container;
+            this.target = target;
+            this.reference = reference;
+            this.referenceKey = PropertyKey.valueOf(reference.getValue());
+            this.converter = converter;
+        }
+
+        private void resolve(TestContext ctx) throws PropertyException {
+            Property referencedProperty = ctx.getProperty(this.referenceKey);
+
+            if (referencedProperty == null) {
+                throw new PropertyException("PropertyReference '" + this.reference + "' could not be resolved.");
+            }
+            if (this.converter != null) {
+                this.converter.apply(this.container, this.target, referencedProperty);
+                // List converters replace the property of the container
+                this.target = this.container.getProperty();
+            }
+            this.resolvedContext = ctx;
+            this.resolvedVersion = ctx.getVersion(this.referenceKey);
+        }
+
+        private boolean isCurrent(TestContext ctx) {
+            return this.resolvedContext == ctx && this.resolvedVersion == ctx.getVersion(this.referenceKey);
+        }
+    }
+
+}
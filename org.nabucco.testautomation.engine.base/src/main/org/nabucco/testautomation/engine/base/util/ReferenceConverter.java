@@ -0,0 +1,252 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.util;
+
+import java.math.BigDecimal;
+
+import org.nabucco.testautomation.engine.base.exception.PropertyException;
+import org.nabucco.testautomation.property.facade.datatype.BooleanProperty;
+import org.nabucco.testautomation.property.facade.datatype.DateProperty;
+import org.nabucco.testautomation.property.facade.datatype.FileProperty;
+import org.nabucco.testautomation.property.facade.datatype.NumericProperty;
+import org.nabucco.testautomation.property.facade.datatype.PropertyList;
+import org.nabucco.testautomation.property.facade.datatype.SqlProperty;
+import org.nabucco.testautomation.property.facade.datatype.TextProperty;
+import org.nabucco.testautomation.property.facade.datatype.XPathProperty;
+import org.nabucco.testautomation.property.facade.datatype.XmlProperty;
+import org.nabucco.testautomation.property.facade.datatype.base.Property;
+import org.nabucco.testautomation.property.facade.datatype.base.PropertyContainer;
+import org.nabucco.testautomation.property.facade.datatype.base.PropertyType;
+import org.nabucco.testautomation.property.facade.datatype.util.PropertyHelper;
+
+/**
+ * ReferenceConverter
+ * 
+ * Transfers the value of a referenced property into the referencing property of a certain
+ * {@link PropertyType}. Values of the same property type are transferred directly as a shallow
+ * copy of the value, sharing the immutable content instead of formatting and parsing it again.
+ * Values of other types are converted through their string representation.
+ * <p>
+ * Referenced lists are either deep cloned ({@link #LIST}) or shared ({@link #SHARED_LIST}). A
+ * shared list is a {@link SharedPropertyList} with the name of the referencing property holding
+ * the very same containers as the referenced list, so no row is copied. Its content must be
+ * treated as read-only; callers modifying it have to clone it first. Compiled plans never descend
+ * into shared lists, so resolving a composite again does not write into the rows of the context.
+ * 
+ * @author agent
+ */
+enum ReferenceConverter {
+
+    TEXT {
+
+        @Override
+        void apply(PropertyContainer container, Property target, Property source) {
+            if (source instanceof TextProperty) {
+                TextProperty value = (TextProperty) source;
+                ((TextProperty) target).setValue(value.getValue() != null ? value.getValue().cloneObject() : null);
+            } else {
+                ((TextProperty) target).setValue(PropertyHelper.toString(source));
+            }
+        }
+    },
+
+    SQL {
+
+        @Override
+        void apply(PropertyContainer container, Property target, Property source) {
+            if (source instanceof SqlProperty) {
+                SqlProperty value = (SqlProperty) source;
+                ((SqlProperty) target).setValue(value.getValue() != null ? value.getValue().cloneObject() : null);
+            } else {
+                ((SqlProperty) target).setValue(PropertyHelper.toString(source));
+            }
+        }
+    },
+
+    XML {
+
+        @Override
+        void apply(PropertyContainer container, Property target, Property source) {
+            if (source instanceof XmlProperty) {
+                XmlProperty value = (XmlProperty) source;
+                ((XmlProperty) target).setValue(value.getValue() != null ? value.getValue().cloneObject() : null);
+            } else {
+                ((XmlProperty) target).setValue(PropertyHelper.toString(source));
+            }
+        }
+    },
+
+    XPATH {
+
+        @Override
+        void apply(PropertyContainer container, Property target, Property source) {
+            if (source instanceof XPathProperty) {
+                XPathProperty value = (XPathProperty) source;
+                ((XPathProperty) target).setValue(value.getValue() != null ? value.getValue().cloneObject() : null);
+            } else {
+                ((XPathProperty) target).setValue(PropertyHelper.toString(source));
+            }
+        }
+    },
+
+    BOOLEAN {
+
+        @Override
+        void apply(PropertyContainer container, Property target, Property source) {
+            if (source instanceof BooleanProperty) {
+                BooleanProperty value = (BooleanProperty) source;
+
+                if (value.getValue() != null) {
+                    ((BooleanProperty) target).setValue(value.getValue().cloneObject());
+                } else {
+                    // As parsed from the string form, an unset value resolves to false
+                    ((BooleanProperty) target).setValue(false);
+                }
+            } else {
+                ((BooleanProperty) target).setValue(Boolean.parseBoolean(PropertyHelper.toString(source)));
+            }
+        }
+    },
+
+    NUMERIC {
+
+        @Override
+        void apply(PropertyContainer container, Property target, Property source) {
+            if (source instanceof NumericProperty) {
+                NumericProperty value = (NumericProperty) source;
+                ((NumericProperty) target).setValue(value.getValue() != null ? value.getValue().cloneObject() : null);
+            } else {
+                ((NumericProperty) target).setValue(new BigDecimal(PropertyHelper.toString(source)));
+            }
+        }
+    },
+
+    DATE {
+
+        @Override
+        void apply(PropertyContainer container, Property target, Property source) throws PropertyException {
+            if (source instanceof DateProperty) {
+                DateProperty value = (DateProperty) source;
+                ((DateProperty) target).setValue(value.getValue() != null ? value.getValue().cloneObject() : null);
+            } else {
+                ((DateProperty) target).setValue(ContextHelper.parseDate(PropertyHelper.toString(source)));
+            }
+        }
+    },
+
+    FILE {
+
+        @Override
+        void apply(PropertyContainer container, Property target, Property source) {
+            if (source instanceof FileProperty) {
+                FileProperty value = (FileProperty) source;
+                ((FileProperty) target).setContent(value.getContent() != null ? value.getContent().cloneObject() : null);
+            } else {
+                ((FileProperty) target).setContent(PropertyHelper.toString(source));
+            }
+        }
+    },
+
+    LIST {
+
+        @Override
+        void apply(PropertyContainer container, Property target, Property source) {
+            Property clonedProperty = source.cloneObject();
+            clonedProperty.setName(target.getName().getValueAsString());
+            container.setProperty(clonedProperty);
+        }
+    },
+
+    SHARED_LIST {
+
+        @Override
+        void apply(PropertyContainer container, Property target, Property source) throws PropertyException {
+
+            if (!(source instanceof PropertyList)) {
+                LIST.apply(container, target, source);
+                return;
+            }
+
+            container.setProperty(new SharedPropertyList(target.getName().getValueAsString(), (PropertyList) source));
+        }
+    };
+
+    /**
+     * Transfers the value of the source property into the target property.
+     * 
+     * @param container
+     *            the container holding the target property
+     * @param target
+     *            the referencing property
+     * @param source
+     *            the referenced property
+     * @throws PropertyException
+     *             thrown, if the value cannot be converted
+     */
+    abstract void apply(PropertyContainer container, Property target, Property source) throws PropertyException;
+
+    /**
+     * Gets the converter for the given property type.
+     * 
+     * @param type
+     *            the type of the referencing property
+     * @return the converter or null, if references are not supported for the type
+     */
+    static ReferenceConverter forType(PropertyType type) {
+        return forType(type, false);
+    }
+
+    /**
+     * Gets the converter for the given property type.
+     * 
+     * @param type
+     *            the type of the referencing property
+     * @param shareLists
+     *            true, if referenced lists are shared instead of cloned
+     * @return the converter or null, if references are not supported for the type
+     */
+    static ReferenceConverter forType(PropertyType type, boolean shareLists) {
+
+        if (type == null) {
+            return null;
+        }
+
+        switch (type) {
+        case TEXT:
+            return TEXT;
+        case SQL:
+            return SQL;
+        case XML:
+            return XML;
+        case XPATH:
+            return XPATH;
+        case BOOLEAN:
+            return BOOLEAN;
+        case NUMERIC:
+            return NUMERIC;
+        case DATE:
+            return DATE;
+        case FILE:
+            return FILE;
+        case LIST:
+            return shareLists ? SHARED_LIST : LIST;
+        default:
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.util;
+
+import org.nabucco.framework.base.facade.datatype.DatatypeState;
+import org.nabucco.testautomation.property.facade.datatype.PropertyList;
+
+/**
+ * SharedPropertyList
+ * 
+ * PropertyList created for a LIST reference resolved as view. It holds the very containers of the
+ * referenced list of the TestContext, so its rows must be treated as read-only. The view is
+ * skipped when a plan is compiled, so that resolving the composite again never writes reference
+ * values into rows owned by the context. Serialization and {@link #cloneObject()} produce an
+ * ordinary, independent PropertyList.
+ * 
+ * @author agent
+ */
+final class SharedPropertyList extends PropertyList {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a view of the rows of the given list.
+     * 
+     * @param name
+     *            the name of the view
+     * @param source
+     *            the referenced list
+     */
+    SharedPropertyList(String name, PropertyList source) {
+        this.setDatatypeState(DatatypeState.INITIALIZED);
+        this.setName(name);
+        this.getPropertyList().addAll(source.getPropertyList());
+    }
+
+    /**
+     * Creates an independent deep copy as ordinary PropertyList.
+     * 
+     * @return the copy
+     */
+    @Override
+    public PropertyList cloneObject() {
+        PropertyList list = new PropertyList();
+        list.setDatatypeState(DatatypeState.INITIALIZED);
+        list.setName(this.getName().getValueAsString());
+        list.getPropertyList().addAll(this.getPropertyList());
+        return list.cloneObject();
+    }
+
+    /**
+     * Serializes the view as independent copy.
+     * 
+     * @return the copy to serialize
+     */
+    private Object writeReplace() {
+        return this.cloneObject();
+    }
+
+}
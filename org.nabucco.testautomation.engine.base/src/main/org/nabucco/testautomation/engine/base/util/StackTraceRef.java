@@ -0,0 +1,114 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.util;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * StackTraceRef
+ * 
+ * Reference to the stack trace of a throwable registered in a {@link StackTraceStore}. Until the
+ * reference is first rendered it only holds the throwable. On first rendering the stack is stored
+ * once in the store and shared with all references of an equal stack, the messages belong to the
+ * reference and the throwable is released. When the reference is serialized, e.g. to a client or
+ * report, the rendered text is written with it, so it can be rendered without the store.
+ * 
+ * @author agent
+ */
+public final class StackTraceRef implements Serializable {
+
+    private static final long serialVersionUID = 2L;
+
+    private transient Throwable throwable;
+
+    private transient StackTraceStore store;
+
+    private transient StackTraceStore.Entry entry;
+
+    private transient String[] messages;
+
+    private String id;
+
+    private String text;
+
+    StackTraceRef(Throwable throwable, StackTraceStore store) {
+        this.throwable = throwable;
+        this.store = store;
+    }
+
+    /**
+     * Stores the stack of the throwable and releases it.
+     */
+    private void capture() {
+        if (this.throwable != null) {
+            List<String> messageList = new ArrayList<String>();
+            this.entry = this.store.capture(this.throwable, messageList);
+            this.messages = messageList.toArray(new String[messageList.size()]);
+            this.id = this.entry.getId();
+            this.throwable = null;
+        }
+    }
+
+    /**
+     * Gets the identifier of the stored stack, equal for all references with an equal stack.
+     * 
+     * @return the identifier
+     */
+    public synchronized String getId() {
+        this.capture();
+        return this.id;
+    }
+
+    /**
+     * Gets the number of references rendered with the same stack so far.
+     * 
+     * @return the number of references, 0 if unknown after deserialization
+     */
+    public synchronized int getCount() {
+        this.capture();
+        return this.entry != null ? this.entry.getCount() : 0;
+    }
+
+    /**
+     * Renders the stack trace.
+     * 
+     * @return the rendered stack trace
+     */
+    public synchronized String render() {
+        if (this.text != null) {
+            return this.text;
+        }
+        this.capture();
+        return this.store.render(this.entry, this.messages);
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        this.text = this.render();
+        this.capture();
+        out.defaultWriteObject();
+    }
+
+    @Override
+    public String toString() {
+        return this.render();
+    }
+
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.util;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * StackTraceStore
+ * 
+ * Stores each distinct stack trace of a run once. Registering a throwable only wraps it in a
+ * {@link StackTraceRef}. When the reference is first rendered or serialized, the throwable is
+ * fingerprinted by the classes and stack frames of its causes and suppressed exceptions, the
+ * frames are shared with all references of an equal stack and the throwable is released. Each
+ * reference keeps its own messages. The rendered text is capped by a maximum number of frames per
+ * throwable and a maximum total length.
+ * <p>
+ * The store keeps the most recently used stacks up to a maximum number. An evicted stack is only
+ * no longer shared with later references, references already rendered keep their frames.
+ * 
+ * @author agent
+ */
+public final class StackTraceStore {
+
+    /**
+     * Default maximum number of frames rendered per throwable.
+     */
+    public static final int DEFAULT_MAX_DEPTH = 64;
+
+    /**
+     * Default maximum number of characters of a rendered stack trace.
+     */
+    public static final int DEFAULT_MAX_LENGTH = 32 * 1024;
+
+    /**
+     * Default maximum number of distinct stack traces stored.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private static final String ID_PREFIX = "ST-";
+
+    private static final String NEWLINE = System.getProperty("line.separator");
+
+    private static final String TRUNCATED = "\t... truncated";
+
+    private static final String CAUSED_BY = "Caused by: ";
+
+    private static final String SUPPRESSED = "Suppressed: ";
+
+    private static final Method GET_SUPPRESSED = getSuppressedMethod();
+
+    private static final StackTraceStore instance = new StackTraceStore(DEFAULT_MAX_DEPTH, DEFAULT_MAX_LENGTH,
+            DEFAULT_MAX_ENTRIES);
+
+    private final Map<StackKey, Entry> entries;
+
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    private final int maxDepth;
+
+    private final int maxLength;
+
+    /**
+     * Creates a new store.
+     * 
+     * @param maxDepth
+     *            the maximum number of frames rendered per throwable
+     * @param maxLength
+     *            the maximum number of characters of a rendered stack trace
+     * @param maxEntries
+     *            the maximum number of distinct stack traces stored
+     */
+    public StackTraceStore(int maxDepth, int maxLength, final int maxEntries) {
+        this.maxDepth = maxDepth;
+        this.maxLength = maxLength;
+        this.entries = new LinkedHashMap<StackKey, Entry>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<StackKey, StackTraceStore.Entry> eldest) {
+                return this.size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Gets the shared store of the engine.
+     * 
+     * @return the store instance
+     */
+    public static StackTraceStore getInstance() {
+        return instance;
+    }
+
+    /**
+     * Registers the given throwable. The stack trace is neither read nor rendered until the
+     * returned reference is rendered or serialized.
+     * 
+     * @param throwable
+     *            the throwable
+     * @return the reference to the stack trace or null, if the throwable is null
+     */
+    public StackTraceRef register(Throwable throwable) {
+
+        if (throwable == null) {
+            return null;
+        }
+        return new StackTraceRef(throwable, this);
+    }
+
+    /**
+     * Fingerprints the given throwable and gets the stored entry of its stack, storing it if new.
+     * 
+     * @param throwable
+     *            the throwable
+     * @param messages
+     *            the list to add the messages of the throwable, its causes and suppressed
+     *            exceptions to, in rendering order
+     * @return the entry
+     */
+    Entry capture(Throwable throwable, List<String> messages) {
+        List<Item> items = new ArrayList<Item>();
+        flatten(throwable, -1, "", "", items, new IdentityHashMap<Throwable, Boolean>());
+
+        for (Item item : items) {
+            messages.add(item.throwable.toString());
+        }
+
+        StackKey key = new StackKey(items);
+
+        synchronized (this.entries) {
+            Entry entry = this.entries.get(key);
+
+            if (entry == null) {
+                entry = new Entry(ID_PREFIX + this.sequence.incrementAndGet(), key);
+                this.entries.put(key, entry);
+            }
+            entry.count.incrementAndGet();
+            return entry;
+        }
+    }
+
+    /**
+     * Renders the given stored stack with the given messages.
+     * 
+     * @param entry
+     *            the stored stack
+     * @param messages
+     *            the messages in rendering order
+     * @return the rendered stack trace
+     */
+    String render(Entry entry, String[] messages) {
+        StackKey key = entry.key;
+        StringBuilder buffer = new StringBuilder();
+
+        for (int i = 0; i < key.frames.length; i++) {
+            StackTraceElement[] frames = key.frames[i];
+            String indent = key.indents[i];
+
+            buffer.append(indent).append(key.captions[i]);
+            buffer.append(i < messages.length ? messages[i] : key.classNames[i]).append(NEWLINE);
+
+            int common = key.enclosing[i] >= 0 ? commonFrames(frames, key.frames[key.enclosing[i]]) : 0;
+            int count = frames.length - common;
+            int rendered = Math.min(count, this.maxDepth);
+
+            for (int j = 0; j < rendered; j++) {
+                buffer.append(indent).append("\tat ").append(frames[j]).append(NEWLINE);
+            }
+
+            if (rendered < count) {
+                buffer.append(indent).append("\t... ").append(count - rendered).append(" frames omitted").append(
+                        NEWLINE);
+            }
+            if (common > 0) {
+                buffer.append(indent).append("\t... ").append(common).append(" more").append(NEWLINE);
+            }
+            if (buffer.length() > this.maxLength) {
+                buffer.setLength(this.maxLength);
+                buffer.append(NEWLINE).append(TRUNCATED).append(NEWLINE);
+                break;
+            }
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Gets the number of distinct stack traces stored.
+     * 
+     * @return the number of stack traces
+     */
+    public int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    /**
+     * Removes all stored stack traces, e.g. at the end of a run. References already rendered keep
+     * their frames.
+     */
+    public void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+        }
+    }
+
+    /**
+     * Collects the throwable, its suppressed exceptions and its causes in the order of
+     * {@link Throwable#printStackTrace()}.
+     */
+    private static void flatten(Throwable throwable, int enclosing, String caption, String indent,
+            List<Item> items, Map<Throwable, Boolean> seen) {
+
+        if (seen.put(throwable, Boolean.TRUE) != null) {
+            return;
+        }
+
+        int index = items.size();
+        items.add(new Item(throwable, enclosing, caption, indent));
+
+        for (Throwable suppressed : getSuppressed(throwable)) {
+            flatten(suppressed, index, SUPPRESSED, indent + "\t", items, seen);
+        }
+
+        Throwable cause = throwable.getCause();
+
+        if (cause != null) {
+            flatten(cause, index, CAUSED_BY, indent, items, seen);
+        }
+    }
+
+    /**
+     * Gets the suppressed exceptions of Java 7 and later.
+     */
+    private static Throwable[] getSuppressed(Throwable throwable) {
+        if (GET_SUPPRESSED != null) {
+            try {
+                return (Throwable[]) GET_SUPPRESSED.invoke(throwable);
+            } catch (Exception e) {
+                // Not available
+            }
+        }
+        return new Throwable[0];
+    }
+
+    private static Method getSuppressedMethod() {
+        try {
+            return Throwable.class.getMethod("getSuppressed");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static int commonFrames(StackTraceElement[] frames, StackTraceElement[] enclosing) {
+        int m = frames.length - 1;
+        int n = enclosing.length - 1;
+
+        while (m >= 0 && n >= 0 && frames[m].equals(enclosing[n])) {
+            m--;
+            n--;
+        }
+        return frames.length - 1 - m;
+    }
+
+    /**
+     * A throwable at its position in the rendered stack trace.
+     */
+    private static final class Item {
+
+        private final Throwable throwable;
+
+        private final int enclosing;
+
+        private final String caption;
+
+        private final String indent;
+
+        private Item(Throwable throwable, int enclosing, String caption, String indent) {
+            this.throwable = throwable;
+            this.enclosing = enclosing;
+            this.caption = caption;
+            this.indent = indent;
+        }
+    }
+
+    /**
+     * Fingerprint of a stack trace by the classes and frames of all its throwables. Messages do
+     * not take part, since they often contain variable data.
+     */
+    private static final class StackKey {
+
+        private final String[] classNames;
+
+        private final StackTraceElement[][] frames;
+
+        private final int[] enclosing;
+
+        private final String[] captions;
+
+        private final String[] indents;
+
+        private final int hash;
+
+        private StackKey(List<Item> items) {
+            int size = items.size();
+            this.classNames = new String[size];
+            this.frames = new StackTraceElement[size][];
+            this.enclosing = new int[size];
+            this.captions = new String[size];
+            this.indents = new String[size];
+
+            int h = 1;
+            for (int i = 0; i < size; i++) {
+                Item item = items.get(i);
+                this.classNames[i] = item.throwable.getClass().getName();
+                this.frames[i] = item.throwable.getStackTrace();
+                this.enclosing[i] = item.enclosing;
+                this.captions[i] = item.caption;
+                this.indents[i] = item.indent;
+                h = 31 * h + this.classNames[i].hashCode();
+                h = 31 * h + Arrays.hashCode(this.frames[i]);
+                h = 31 * h + item.enclosing;
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof StackKey)) {
+                return false;
+            }
+            StackKey other = (StackKey) obj;
+            return this.hash == other.hash
+                    && Arrays.equals(this.classNames, other.classNames)
+                    && Arrays.equals(this.enclosing, other.enclosing)
+                    && Arrays.equals(this.captions, other.captions)
+                    && Arrays.deepEquals(this.frames, other.frames);
+        }
+    }
+
+    /**
+     * A stored stack trace.
+     */
+    static final class Entry {
+
+        private final String id;
+
+        private final StackKey key;
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        private Entry(String id, StackKey key) {
+            this.id = id;
+            this.key = key;
+        }
+
+        /**
+         * @return the identifier of the stack
+         */
+        String getId() {
+            return this.id;
+        }
+
+        /**
+         * @return the number of references sharing the stack
+         */
+        int getCount() {
+            return this.count.get();
+        }
+    }
+
+}
@@ -16,11 +16,14 @@
  */
 package org.nabucco.testautomation.engine.base.util;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Collections;
 import java.util.List;
 
 import org.nabucco.framework.base.facade.datatype.DatatypeState;
+import org.nabucco.testautomation.engine.base.context.TestContext;
 import org.nabucco.testautomation.result.facade.datatype.ActionResponse;
 import org.nabucco.testautomation.result.facade.datatype.ActionTraceFactory;
 import org.nabucco.testautomation.result.facade.datatype.TestConfigurationResult;
@@ -117,6 +120,84 @@ public class TestResultHelper {
 		return ActionTraceFactory.getInstance().createFileTrace();
 	}
 	
+	public static ScreenshotTrace createScreenshotTrace(byte[] screenshot, TraceStore store) throws IOException {
+		ScreenshotTrace trace = createScreenshotTrace();
+		trace.setScreenshot(screenshot);
+		
+		if (store != null) {
+			store.spill(trace);
+		}
+		return trace;
+	}
+	
+	public static FileTrace createFileTrace(byte[] content, TraceStore store) throws IOException {
+		FileTrace trace = createFileTrace();
+		trace.setFileContent(content);
+		
+		if (store != null) {
+			store.spill(trace);
+		}
+		return trace;
+	}
+	
+	public static MessageTrace createMessageTrace(ActionResponse response, TestContext context) {
+		MessageTrace trace = createMessageTrace();
+		attachTrace(response, trace, context);
+		return trace;
+	}
+	
+	public static ScreenshotTrace createScreenshotTrace(byte[] screenshot, TraceStore store, ActionResponse response,
+			TestContext context) throws IOException {
+		ScreenshotTrace trace = createScreenshotTrace(screenshot, store);
+		attachTrace(response, trace, context);
+		return trace;
+	}
+	
+	public static FileTrace createFileTrace(byte[] content, TraceStore store, ActionResponse response,
+			TestContext context) throws IOException {
+		FileTrace trace = createFileTrace(content, store);
+		attachTrace(response, trace, context);
+		return trace;
+	}
+	
+	/**
+	 * Attaches the trace to the response, unless the tracing policy of the context buffers it until
+	 * {@link #recordFailure(ActionResponse, TestContext)}.
+	 */
+	public static void attachTrace(ActionResponse response, ActionTrace trace, TestContext context) {
+		
+		if (context == null || !context.bufferTrace(trace)) {
+			response.setActionTrace(trace);
+		}
+	}
+	
+	/**
+	 * Marks the response as failed and flushes the buffered traces of the context. The most recent
+	 * buffered trace is attached to the response, if it has no trace yet. All flushed traces are
+	 * returned in creation order, to be attached to the result by the caller.
+	 */
+	public static List<ActionTrace> recordFailure(ActionResponse response, TestContext context) {
+		response.setElementStatus(TestScriptElementStatusType.FAILED);
+		
+		List<ActionTrace> traces = context != null ? context.flushTraces() : Collections.<ActionTrace> emptyList();
+		
+		if (response.getActionTrace() == null && !traces.isEmpty()) {
+			response.setActionTrace(traces.get(traces.size() - 1));
+		}
+		return traces;
+	}
+	
+	/**
+	 * Marks the response as passed and discards the buffered traces of the context.
+	 */
+	public static void recordSuccess(ActionResponse response, TestContext context) {
+		response.setElementStatus(TestScriptElementStatusType.PASSED);
+		
+		if (context != null) {
+			context.discardTraces();
+		}
+	}
+	
 	public static void addTestResult(TestResult result, TestResult parent) {
 		
 		if (parent == null) {
@@ -126,7 +207,7 @@ public class TestResultHelper {
     	TestResultContainer container = new TestResultContainer();
     	container.setDatatypeState(DatatypeState.INITIALIZED);
     	container.setResult(result);
-    	container.setOrderIndex(parent.getTestResultList().size());
+    	container.setOrderIndex(OrderIndexCounters.next(parent, parent.getTestResultList()));
     	parent.getTestResultList().add(container);
     }
 	
@@ -135,18 +216,67 @@ public class TestResultHelper {
 		if (parent == null) {
 			return null;
 		}
+		OrderIndexCounters.start(parent, parent.getTestResultList());
+		return removeTestResult(result, parent.getTestResultList());
+    }
+	
+	public static TestResult removeTestResult(TestResult result, TestConfigurationResult parent) {
 		
-    	List<TestResultContainer> testResultList = parent.getTestResultList();
+		if (parent == null) {
+			return null;
+		}
+		OrderIndexCounters.start(parent, parent.getTestResultList());
+		return removeTestResult(result, parent.getTestResultList());
+	}
+	
+	private static TestResult removeTestResult(TestResult result, List<TestResultContainer> testResultList) {
+    	
+    	// Identity first, recently added results are removed most often
+    	for (int i = testResultList.size() - 1; i >= 0; i--) {
+    		
+    		if (testResultList.get(i).getResult() == result) {
+    			return testResultList.remove(i).getResult();
+    		}
+    	}
     	
-		for (TestResultContainer container : testResultList) {
+    	for (int i = 0; i < testResultList.size(); i++) {
     		
-    		if (container.getResult().equals(result)) {
-    			testResultList.remove(container);
-    			return container.getResult();
+    		if (testResultList.get(i).getResult().equals(result)) {
+    			return testResultList.remove(i).getResult();
     		}
     	}
     	return null;
     }
+	
+	/**
+	 * Writes the finished result to the sink and removes it from its parent, so that only the
+	 * returned summary stays in memory.
+	 */
+	public static TestResultSummary streamTestResult(TestResult result, TestResult parent, TestResultSink sink)
+			throws IOException {
+		TestResultSummary summary = sink.write(result);
+		removeTestResult(result, parent);
+		return summary;
+	}
+	
+	/**
+	 * Writes the finished result to the sink and removes it from its parent, so that only the
+	 * returned summary stays in memory.
+	 */
+	public static TestResultSummary streamTestResult(TestResult result, TestConfigurationResult parent,
+			TestResultSink sink) throws IOException {
+		TestResultSummary summary = sink.write(result);
+		removeTestResult(result, parent);
+		return summary;
+	}
+	
+	public static TestResultIndex createIndex(TestResult parent) {
+		return new TestResultIndex(parent);
+	}
+	
+	public static TestResultIndex createIndex(TestConfigurationResult parent) {
+		return new TestResultIndex(parent);
+	}
 
 	public static void addTestResult(TestResult result, TestConfigurationResult parent) {
 		
@@ -157,7 +287,7 @@ public class TestResultHelper {
 		TestResultContainer container = new TestResultContainer();
 		container.setDatatypeState(DatatypeState.INITIALIZED);
 		container.setResult(result);
-		container.setOrderIndex(parent.getTestResultList().size());
+		container.setOrderIndex(OrderIndexCounters.next(parent, parent.getTestResultList()));
 		parent.getTestResultList().add(container);
 	}
 	
@@ -172,5 +302,18 @@ public class TestResultHelper {
     	ex.printStackTrace(pw);
     	return str.getBuffer().toString();
     }
+    
+    /**
+     * Registers the stack trace of the given exception. The stack is fingerprinted and stored once
+     * per distinct stack when the reference is first rendered. The rendering is capped, use
+     * {@link #getStackTrace(Exception)} for the complete stack trace.
+     */
+    public static StackTraceRef getStackTraceRef(Exception ex) {
+    	return StackTraceStore.getInstance().register(ex);
+    }
+    
+    public static String renderStackTrace(StackTraceRef ref) {
+    	return ref != null ? ref.render() : null;
+    }
 	
 }
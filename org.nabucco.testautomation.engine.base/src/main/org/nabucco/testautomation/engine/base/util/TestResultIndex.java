@@ -0,0 +1,314 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.nabucco.framework.base.facade.datatype.DatatypeState;
+import org.nabucco.framework.base.facade.datatype.OrderIndex;
+import org.nabucco.testautomation.result.facade.datatype.TestConfigurationResult;
+import org.nabucco.testautomation.result.facade.datatype.TestResult;
+import org.nabucco.testautomation.result.facade.datatype.TestResultContainer;
+
+/**
+ * TestResultIndex
+ * 
+ * Index over the children of a {@link TestResult} or {@link TestConfigurationResult}. Children are
+ * looked up by identity or by their TestConfigElement identifier in constant time. Order indices
+ * are taken from a counter, so they stay unique and ascending after removals without rescanning
+ * the children.
+ * <p>
+ * Adding and removing take amortized constant time. Removing the last child removes it
+ * immediately, any other child is only marked as removed. Marked children are taken out of the
+ * parent in a single pass, once they make up half of its children, or by {@link #compact()}. Call
+ * {@link #compact()} before the children of the parent are read or sent.
+ * <p>
+ * The index owns the children of the parent exclusively. While it is in use, the children must
+ * not be modified otherwise, e.g. with {@link TestResultHelper#addTestResult(TestResult, TestResult)}
+ * or {@link TestResultHelper#removeTestResult(TestResult, TestResult)}, or the index is stale.
+ * 
+ * @author agent
+ */
+public class TestResultIndex {
+
+    private final List<TestResultContainer> testResultList;
+
+    private final Map<TestResult, Node> nodeMap = new IdentityHashMap<TestResult, Node>();
+
+    private final Map<Object, Chain> elementMap = new HashMap<Object, Chain>();
+
+    private final Set<TestResultContainer> removed = Collections
+            .newSetFromMap(new IdentityHashMap<TestResultContainer, Boolean>());
+
+    private int nextOrderIndex;
+
+    /**
+     * Creates the index over the children of the given result.
+     * 
+     * @param parent
+     *            the parent result
+     */
+    public TestResultIndex(TestResult parent) {
+        this(parent.getTestResultList());
+    }
+
+    /**
+     * Creates the index over the children of the given configuration result.
+     * 
+     * @param parent
+     *            the parent configuration result
+     */
+    public TestResultIndex(TestConfigurationResult parent) {
+        this(parent.getTestResultList());
+    }
+
+    private TestResultIndex(List<TestResultContainer> testResultList) {
+        this.testResultList = testResultList;
+
+        // Removals never renumber the children, so the largest order index may exceed the size
+        for (TestResultContainer container : testResultList) {
+            this.index(container);
+
+            OrderIndex orderIndex = container.getOrderIndex();
+
+            if (orderIndex != null && orderIndex.getValue() != null) {
+                this.nextOrderIndex = Math.max(this.nextOrderIndex, orderIndex.getValue().intValue() + 1);
+            }
+        }
+        this.nextOrderIndex = Math.max(this.nextOrderIndex, testResultList.size());
+    }
+
+    private void index(TestResultContainer container) {
+        TestResult result = container.getResult();
+
+        if (result == null) {
+            return;
+        }
+
+        Node node = new Node(container, result.getTestConfigElementId());
+        this.nodeMap.put(result, node);
+
+        if (node.elementId != null) {
+            Chain chain = this.elementMap.get(node.elementId);
+
+            if (chain == null) {
+                chain = new Chain();
+                this.elementMap.put(node.elementId, chain);
+            }
+            chain.append(node);
+        }
+    }
+
+    /**
+     * Adds the given result as last child.
+     * 
+     * @param result
+     *            the result to add
+     */
+    public void add(TestResult result) {
+        int orderIndex = this.nextOrderIndex++;
+
+        TestResultContainer container = new TestResultContainer();
+        container.setDatatypeState(DatatypeState.INITIALIZED);
+        container.setResult(result);
+        container.setOrderIndex(orderIndex);
+        this.testResultList.add(container);
+        this.index(container);
+    }
+
+    /**
+     * Removes the given result. The last child is removed from the parent immediately, any other
+     * child is marked as removed until the next compaction.
+     * 
+     * @param result
+     *            the result to remove
+     * @return the removed result or null, if it is no child
+     */
+    public TestResult remove(TestResult result) {
+        Node node = this.nodeMap.remove(result);
+
+        if (node == null) {
+            return null;
+        }
+
+        int last = this.testResultList.size() - 1;
+
+        if (last >= 0 && this.testResultList.get(last) == node.container) {
+            this.testResultList.remove(last);
+        } else {
+            this.removed.add(node.container);
+
+            if (this.removed.size() * 2 >= this.testResultList.size()) {
+                this.compact();
+            }
+        }
+
+        if (node.elementId != null) {
+            Chain chain = this.elementMap.get(node.elementId);
+            chain.unlink(node);
+
+            if (chain.size == 0) {
+                this.elementMap.remove(node.elementId);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Takes all children marked as removed out of the parent in a single pass.
+     */
+    public void compact() {
+
+        if (this.removed.isEmpty()) {
+            return;
+        }
+
+        List<TestResultContainer> remaining = new ArrayList<TestResultContainer>(this.testResultList.size()
+                - this.removed.size());
+
+        for (TestResultContainer container : this.testResultList) {
+            if (!this.removed.contains(container)) {
+                remaining.add(container);
+            }
+        }
+        this.testResultList.clear();
+        this.testResultList.addAll(remaining);
+        this.removed.clear();
+    }
+
+    /**
+     * Gets the child result of the given TestConfigElement.
+     * 
+     * @param elementId
+     *            the TestConfigElement identifier as returned by
+     *            {@link TestResult#getTestConfigElementId()}
+     * @return the first child result of the element or null, if not found
+     */
+    public TestResult getByElementId(Object elementId) {
+        Chain chain = this.elementMap.get(elementId);
+        return chain != null ? chain.head.container.getResult() : null;
+    }
+
+    /**
+     * Gets all child results of the given TestConfigElement, e.g. of data-driven repetitions.
+     * 
+     * @param elementId
+     *            the TestConfigElement identifier as returned by
+     *            {@link TestResult#getTestConfigElementId()}
+     * @return the child results of the element in child order, an empty list if not found
+     */
+    public List<TestResult> getAllByElementId(Object elementId) {
+        Chain chain = this.elementMap.get(elementId);
+
+        if (chain == null) {
+            return Collections.emptyList();
+        }
+
+        List<TestResult> results = new ArrayList<TestResult>(chain.size);
+
+        for (Node node = chain.head; node != null; node = node.next) {
+            results.add(node.container.getResult());
+        }
+        return Collections.unmodifiableList(results);
+    }
+
+    /**
+     * Checks whether the given result is a child.
+     * 
+     * @param result
+     *            the result
+     * @return true, if the result is a child
+     */
+    public boolean contains(TestResult result) {
+        return this.nodeMap.containsKey(result);
+    }
+
+    /**
+     * Gets the number of children, not counting children marked as removed.
+     * 
+     * @return the number of children
+     */
+    public int size() {
+        return this.testResultList.size() - this.removed.size();
+    }
+
+    /**
+     * An indexed child, linked with the other children of the same TestConfigElement.
+     */
+    private static final class Node {
+
+        private final TestResultContainer container;
+
+        private final Object elementId;
+
+        private Node prev;
+
+        private Node next;
+
+        private Node(TestResultContainer container, Object elementId) {
+            this.container = container;
+            this.elementId = elementId;
+        }
+    }
+
+    /**
+     * The children of a TestConfigElement in child order.
+     */
+    private static final class Chain {
+
+        private Node head;
+
+        private Node tail;
+
+        private int size;
+
+        private void append(Node node) {
+            node.prev = this.tail;
+
+            if (this.tail != null) {
+                this.tail.next = node;
+            } else {
+                this.head = node;
+            }
+            this.tail = node;
+            this.size++;
+        }
+
+        private void unlink(Node node) {
+            if (node.prev != null) {
+                node.prev.next = node.next;
+            } else {
+                this.head = node.next;
+            }
+            if (node.next != null) {
+                node.next.prev = node.prev;
+            } else {
+                this.tail = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            this.size--;
+        }
+    }
+
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.nabucco.framework.base.facade.datatype.logger.NabuccoLogger;
+import org.nabucco.framework.base.facade.datatype.logger.NabuccoLoggingFactory;
+import org.nabucco.testautomation.engine.base.exception.InterruptionException;
+import org.nabucco.testautomation.result.facade.datatype.TestResult;
+import org.nabucco.testautomation.result.facade.datatype.TestScriptResult;
+
+/**
+ * TestResultPublisher
+ * 
+ * Publishes finished results asynchronously to a {@link TestResultTransport}. Results are
+ * collected in a bounded queue and sent in batches by a background thread, as soon as the batch
+ * is full or the time window of its first result has elapsed. The execution thread blocks only,
+ * if the queue is full (back-pressure). Batches are optionally GZIP-compressed. A batch that
+ * cannot be sent is retried with increasing delay, before it is handed to
+ * {@link TestResultTransport#failed(byte[], int, Exception)}. Results still queued when the
+ * background thread is interrupted are handed to it as well.
+ * <p>
+ * A result is serialized on the publishing thread, so the background thread never reads a result
+ * that is still being modified, and later modifications are not sent. A published result is sent
+ * including all its children. To send deltas only, publish each result once it is finished and detach its
+ * children before publishing a parent, e.g. with
+ * {@link TestResultHelper#streamTestResult(TestResult, TestResult, TestResultSink)}; otherwise
+ * already published children are sent again with their parent.
+ * 
+ * @author agent
+ */
+public class TestResultPublisher {
+
+    /**
+     * Default maximum number of results per batch.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /**
+     * Default time window of a batch in milliseconds.
+     */
+    public static final long DEFAULT_BATCH_WINDOW = 500;
+
+    /**
+     * Default capacity of the queue.
+     */
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    private static final NabuccoLogger logger = NabuccoLoggingFactory.getInstance().getLogger(
+            TestResultPublisher.class);
+
+    private static final Object END = new Object();
+
+    private static final int GZIP_MAGIC = 0x1f;
+
+    private static final long CLOSE_TIMEOUT = 60000;
+
+    private static final long OFFER_TIMEOUT = 1000;
+
+    private static final int MAX_RETRIES = 3;
+
+    private static final long RETRY_DELAY = 1000;
+
+    private final TestResultTransport transport;
+
+    private final int batchSize;
+
+    private final long batchWindow;
+
+    private final boolean compress;
+
+    private final BlockingQueue<Object> queue;
+
+    private final Thread worker;
+
+    private volatile boolean closed;
+
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * Creates a new publisher with default batch size, window and capacity and compression
+     * enabled.
+     * 
+     * @param transport
+     *            the transport to send the batches with
+     */
+    public TestResultPublisher(TestResultTransport transport) {
+        this(transport, DEFAULT_BATCH_SIZE, DEFAULT_BATCH_WINDOW, DEFAULT_CAPACITY, true);
+    }
+
+    /**
+     * Creates a new publisher.
+     * 
+     * @param transport
+     *            the transport to send the batches with
+     * @param batchSize
+     *            the maximum number of results per batch
+     * @param batchWindow
+     *            the maximum time in milliseconds a result waits for further results
+     * @param capacity
+     *            the maximum number of queued results before publishing blocks
+     * @param compress
+     *            true, if batches are GZIP-compressed
+     */
+    public TestResultPublisher(TestResultTransport transport, int batchSize, long batchWindow, int capacity,
+            boolean compress) {
+        if (transport == null) {
+            throw new IllegalArgumentException("Transport must not be null");
+        }
+        if (batchSize < 1 || batchWindow < 0 || capacity < 1) {
+            throw new IllegalArgumentException("Invalid batch size, window or capacity");
+        }
+        this.transport = transport;
+        this.batchSize = batchSize;
+        this.batchWindow = batchWindow;
+        this.compress = compress;
+        this.queue = new ArrayBlockingQueue<Object>(capacity);
+        this.worker = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    TestResultPublisher.this.work();
+                } catch (Throwable t) {
+                    logger.fatal(t, "Publisher thread terminated unexpectedly");
+                }
+            }
+        }, "TestResultPublisher");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Publishes a finished result. The result is serialized immediately. Blocks, if the queue is
+     * full.
+     * 
+     * @param result
+     *            the result to publish
+     * @throws IllegalStateException
+     *             thrown, if the publisher is closed or its background thread has terminated
+     */
+    public void publish(TestResult result) {
+        this.enqueue(result);
+    }
+
+    /**
+     * Publishes a finished script result. The result is serialized immediately. Blocks, if the
+     * queue is full.
+     * 
+     * @param result
+     *            the script result to publish
+     * @throws IllegalStateException
+     *             thrown, if the publisher is closed or its background thread has terminated
+     */
+    public void publish(TestScriptResult result) {
+        this.enqueue(result);
+    }
+
+    private void enqueue(Serializable result) {
+
+        if (this.closed) {
+            throw new IllegalStateException("Publisher is closed");
+        }
+
+        byte[] data;
+
+        try {
+            data = serialize(result);
+        } catch (IOException e) {
+            logger.error(e, "Could not serialize result");
+            this.failedCount.incrementAndGet();
+            return;
+        }
+
+        try {
+            while (!this.queue.offer(data, OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                this.checkWorker();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptionException("Interrupted while publishing result", e);
+        }
+    }
+
+    private void checkWorker() {
+        if (!this.worker.isAlive()) {
+            throw new IllegalStateException("Publisher thread has terminated");
+        }
+    }
+
+    /**
+     * Collects and sends batches until the end marker is taken from the queue.
+     */
+    private void work() {
+        List<byte[]> batch = new ArrayList<byte[]>(this.batchSize);
+        boolean end = false;
+
+        while (!end) {
+            try {
+                Object first = this.queue.take();
+
+                if (first == END) {
+                    break;
+                }
+                batch.add((byte[]) first);
+
+                long deadline = System.currentTimeMillis() + this.batchWindow;
+
+                while (batch.size() < this.batchSize) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    Object next = remaining > 0 ? this.queue.poll(remaining, TimeUnit.MILLISECONDS) : this.queue
+                            .poll();
+
+                    if (next == null) {
+                        break;
+                    }
+                    if (next == END) {
+                        end = true;
+                        break;
+                    }
+                    batch.add((byte[]) next);
+                }
+            } catch (InterruptedException e) {
+                this.drain(batch, e);
+                return;
+            }
+
+            if (!batch.isEmpty()) {
+                this.send(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Hands the current batch and all queued results to the transport as failed.
+     */
+    private void drain(List<byte[]> batch, InterruptedException cause) {
+        logger.warning("Publisher interrupted, " + (batch.size() + this.queue.size()) + " results are not sent");
+
+        for (Object next = this.queue.poll(); next != null; next = this.queue.poll()) {
+            if (next != END) {
+                batch.add((byte[]) next);
+            }
+        }
+
+        for (int i = 0; i < batch.size(); i += this.batchSize) {
+            List<byte[]> part = batch.subList(i, Math.min(batch.size(), i + this.batchSize));
+            this.fail(part, this.encodeSafely(part), cause);
+        }
+        batch.clear();
+    }
+
+    private void send(List<byte[]> batch) {
+        byte[] data = this.encodeSafely(batch);
+
+        if (data == null) {
+            this.failedCount.addAndGet(batch.size());
+            return;
+        }
+
+        long delay = RETRY_DELAY;
+
+        for (int attempt = 0;; attempt++) {
+            try {
+                this.transport.send(data, batch.size());
+
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Published " + batch.size() + " results with " + data.length + " bytes");
+                }
+                return;
+            } catch (Exception e) {
+
+                if (attempt >= MAX_RETRIES || !this.sleep(delay)) {
+                    logger.error(e, "Could not publish " + batch.size() + " results");
+                    this.fail(batch, data, e);
+                    return;
+                }
+                logger.warning("Could not publish " + batch.size() + " results, retrying: " + e.getMessage());
+                delay *= 2;
+            }
+        }
+    }
+
+    /**
+     * Counts the batch as failed and hands it to the transport, if it could be encoded.
+     */
+    private void fail(List<byte[]> batch, byte[] data, Exception cause) {
+        this.failedCount.addAndGet(batch.size());
+
+        if (data == null) {
+            return;
+        }
+
+        try {
+            this.transport.failed(data, batch.size(), cause);
+        } catch (Throwable t) {
+            logger.error(t, "Transport could not handle " + batch.size() + " failed results");
+        }
+    }
+
+    private boolean sleep(long delay) {
+        try {
+            Thread.sleep(delay);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Gets the number of results, which could not be sent.
+     * 
+     * @return the number of failed results
+     */
+    public long getFailedCount() {
+        return this.failedCount.get();
+    }
+
+    private static byte[] serialize(Serializable result) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(buffer);
+        oos.writeObject(result);
+        oos.close();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Encodes the batch, returns null if that fails.
+     */
+    private byte[] encodeSafely(List<byte[]> batch) {
+        try {
+            return this.encode(batch);
+        } catch (Throwable t) {
+            logger.error(t, "Could not encode " + batch.size() + " results");
+            return null;
+        }
+    }
+
+    /**
+     * Writes the number of results followed by each serialized result with its length.
+     */
+    private byte[] encode(List<byte[]> batch) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        OutputStream out = this.compress ? new GZIPOutputStream(buffer) : buffer;
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(batch.size());
+
+        for (byte[] result : batch) {
+            dos.writeInt(result.length);
+            dos.write(result);
+        }
+        dos.close();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Decodes a batch sent by a publisher. Compression is detected automatically.
+     * 
+     * @param batch
+     *            the encoded batch
+     * @return the results of the batch in publish order
+     * @throws IOException
+     *             thrown, if the batch cannot be decoded
+     */
+    public static List<Object> decode(byte[] batch) throws IOException {
+        InputStream in = new ByteArrayInputStream(batch);
+
+        if (batch.length > 0 && (batch[0] & 0xff) == GZIP_MAGIC) {
+            in = new GZIPInputStream(in);
+        }
+
+        DataInputStream dis = new DataInputStream(in);
+
+        try {
+            int count = dis.readInt();
+            List<Object> results = new ArrayList<Object>(count);
+
+            for (int i = 0; i < count; i++) {
+                byte[] data = new byte[dis.readInt()];
+                dis.readFully(data);
+                ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+                results.add(ois.readObject());
+                ois.close();
+            }
+            return results;
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Cannot decode batch: " + e.getMessage());
+        } finally {
+            dis.close();
+        }
+    }
+
+    /**
+     * Sends all queued results and stops the background thread. Waits at most one minute.
+     */
+    public void close() {
+
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+
+        try {
+            long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+
+            if (!this.worker.isAlive()) {
+                logger.warning("Publisher thread has terminated, " + this.queue.size() + " results are not sent");
+                return;
+            }
+            if (this.queue.offer(END, CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                this.worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } else {
+                this.worker.interrupt();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.worker.interrupt();
+            throw new InterruptionException("Interrupted while closing publisher", e);
+        }
+
+        if (this.worker.isAlive()) {
+            logger.warning("Publisher did not finish within " + CLOSE_TIMEOUT + " ms");
+        }
+    }
+
+}
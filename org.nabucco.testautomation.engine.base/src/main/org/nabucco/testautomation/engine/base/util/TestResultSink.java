@@ -0,0 +1,80 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.util;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.nabucco.testautomation.result.facade.datatype.TestResult;
+
+/**
+ * TestResultSink
+ * 
+ * Receives finished result subtrees during the execution, so that they do not have to be kept in
+ * the TestConfigurationResult until the end of the run. Only a {@link TestResultSummary} of each
+ * written subtree is kept in memory.
+ * 
+ * @author agent
+ */
+public interface TestResultSink {
+
+    /**
+     * Writes the given finished result including all its children.
+     * 
+     * @param result
+     *            the finished result
+     * @return the summary of the written result
+     * @throws IOException
+     *             thrown, if the result cannot be written
+     */
+    TestResultSummary write(TestResult result) throws IOException;
+
+    /**
+     * Reads a written result back.
+     * 
+     * @param summary
+     *            the summary returned by {@link #write(TestResult)}
+     * @return the result including all its children
+     * @throws IOException
+     *             thrown, if the result cannot be read
+     */
+    TestResult read(TestResultSummary summary) throws IOException;
+
+    /**
+     * Gets the summaries of all written results in write order.
+     * 
+     * @return the unmodifiable list of summaries
+     */
+    List<TestResultSummary> getSummaries();
+
+    /**
+     * Flushes all written results.
+     * 
+     * @throws IOException
+     *             thrown, if the results cannot be flushed
+     */
+    void flush() throws IOException;
+
+    /**
+     * Flushes and closes the sink.
+     * 
+     * @throws IOException
+     *             thrown, if the sink cannot be closed
+     */
+    void close() throws IOException;
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.util;
+
+import java.io.Serializable;
+
+import org.nabucco.testautomation.result.facade.datatype.TestResult;
+import org.nabucco.testautomation.result.facade.datatype.status.TestConfigElementStatusType;
+
+/**
+ * TestResultSummary
+ * 
+ * Lightweight summary of a result written to a {@link TestResultSink}.
+ * 
+ * @author agent
+ */
+public final class TestResultSummary implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String elementId;
+
+    private final String name;
+
+    private final TestConfigElementStatusType status;
+
+    private final int childCount;
+
+    private final long location;
+
+    /**
+     * Creates the summary of the given result.
+     * 
+     * @param result
+     *            the written result
+     * @param location
+     *            the sink specific location of the written result
+     */
+    public TestResultSummary(TestResult result, long location) {
+        Object id = result.getTestConfigElementId();
+        this.elementId = id != null ? id.toString() : null;
+        this.name = result.getName() != null ? result.getName().getValue() : null;
+        this.status = result.getStatus();
+        this.childCount = result.getTestResultList().size();
+        this.location = location;
+    }
+
+    /**
+     * @return the TestConfigElement identifier of the result
+     */
+    public String getElementId() {
+        return this.elementId;
+    }
+
+    /**
+     * @return the name of the result
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return the status of the result when it was written
+     */
+    public TestConfigElementStatusType getStatus() {
+        return this.status;
+    }
+
+    /**
+     * @return the number of direct children of the result
+     */
+    public int getChildCount() {
+        return this.childCount;
+    }
+
+    /**
+     * @return the sink specific location of the written result
+     */
+    public long getLocation() {
+        return this.location;
+    }
+
+    @Override
+    public String toString() {
+        return "TestResultSummary[" + this.elementId + ", " + this.name + ", " + this.status + "]";
+    }
+
+}
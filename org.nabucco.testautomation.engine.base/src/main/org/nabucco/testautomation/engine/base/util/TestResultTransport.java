@@ -0,0 +1,55 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.util;
+
+import java.io.IOException;
+
+/**
+ * TestResultTransport
+ * 
+ * Sends the batches of a {@link TestResultPublisher} to the client.
+ * 
+ * @author agent
+ */
+public interface TestResultTransport {
+
+    /**
+     * Sends an encoded batch. The batch can be decoded with {@link TestResultPublisher#decode(byte[])}.
+     * 
+     * @param batch
+     *            the encoded batch
+     * @param count
+     *            the number of results in the batch
+     * @throws IOException
+     *             thrown, if the batch cannot be sent
+     */
+    public void send(byte[] batch, int count) throws IOException;
+
+    /**
+     * Called, if a batch could not be sent after all retries. The results of the batch are not
+     * sent again, the transport may e.g. persist the batch or mark the client as out of sync.
+     * 
+     * @param batch
+     *            the encoded batch
+     * @param count
+     *            the number of results in the batch
+     * @param cause
+     *            the failure of the last attempt
+     */
+    public void failed(byte[] batch, int count, Exception cause);
+
+}
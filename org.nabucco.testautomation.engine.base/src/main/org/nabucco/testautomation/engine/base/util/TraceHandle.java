@@ -0,0 +1,156 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.util;
+
+import java.io.Serializable;
+import java.nio.charset.Charset;
+
+/**
+ * TraceHandle
+ * 
+ * Reference to a trace payload spilled to a {@link TraceStore}. The handle is stored in place of
+ * the payload, encoded as a short marker followed by the content digest and the payload length.
+ * 
+ * @author agent
+ */
+public final class TraceHandle implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final String MARKER = "NBCTRACE:";
+
+    private static final char SEPARATOR = ':';
+
+    private static final int MAX_ENCODED_LENGTH = 128;
+
+    /** Length of a hex encoded SHA-1 digest. */
+    private static final int DIGEST_LENGTH = 40;
+
+    private final String digest;
+
+    private final long length;
+
+    /**
+     * Creates a new handle.
+     * 
+     * @param digest
+     *            the hex encoded content digest
+     * @param length
+     *            the payload length in bytes
+     */
+    TraceHandle(String digest, long length) {
+        this.digest = digest;
+        this.length = length;
+    }
+
+    /**
+     * @return the hex encoded content digest
+     */
+    public String getDigest() {
+        return this.digest;
+    }
+
+    /**
+     * @return the payload length in bytes
+     */
+    public long getLength() {
+        return this.length;
+    }
+
+    /**
+     * Encodes the handle to be stored in place of the payload.
+     * 
+     * @return the encoded handle
+     */
+    public byte[] toBytes() {
+        return (MARKER + this.digest + SEPARATOR + this.length).getBytes(ASCII);
+    }
+
+    /**
+     * Decodes a handle stored in place of a payload.
+     * 
+     * @param data
+     *            the stored payload
+     * @return the handle or null, if the data is no handle or holds no valid SHA-1 digest
+     */
+    public static TraceHandle valueOf(byte[] data) {
+
+        if (data == null || data.length <= MARKER.length() || data.length > MAX_ENCODED_LENGTH) {
+            return null;
+        }
+
+        for (int i = 0; i < MARKER.length(); i++) {
+            if (data[i] != MARKER.charAt(i)) {
+                return null;
+            }
+        }
+
+        String value = new String(data, MARKER.length(), data.length - MARKER.length(), ASCII);
+        int index = value.indexOf(SEPARATOR);
+
+        if (index != DIGEST_LENGTH || !isDigest(value.substring(0, index))) {
+            return null;
+        }
+
+        try {
+            long length = Long.parseLong(value.substring(index + 1));
+            return length >= 0 ? new TraceHandle(value.substring(0, index), length) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks for lowercase hex characters only, so a digest never addresses a file outside of the
+     * store.
+     */
+    private static boolean isDigest(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return this.digest.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof TraceHandle)) {
+            return false;
+        }
+        TraceHandle other = (TraceHandle) obj;
+        return this.length == other.length && this.digest.equals(other.digest);
+    }
+
+    @Override
+    public String toString() {
+        return MARKER + this.digest + SEPARATOR + this.length;
+    }
+
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nabucco.framework.base.facade.datatype.logger.NabuccoLogger;
+import org.nabucco.framework.base.facade.datatype.logger.NabuccoLoggingFactory;
+import org.nabucco.testautomation.result.facade.datatype.trace.FileTrace;
+import org.nabucco.testautomation.result.facade.datatype.trace.ScreenshotTrace;
+
+/**
+ * TraceStore
+ * 
+ * Content-addressed disk store for large trace payloads. Payloads of {@link ScreenshotTrace} and
+ * {@link FileTrace} above a threshold are written to a file named by their SHA-1 digest and
+ * replaced in the trace by a {@link TraceHandle}, so that the result tree keeps only the handle.
+ * Identical payloads, e.g. repeated screenshots of the same screen, are stored once. Payloads are
+ * loaded from disk only when requested.
+ * 
+ * @author agent
+ */
+public class TraceStore {
+
+    /**
+     * Default payload size in bytes above which payloads are spilled to disk.
+     */
+    public static final int DEFAULT_THRESHOLD = 16 * 1024;
+
+    private static final NabuccoLogger logger = NabuccoLoggingFactory.getInstance().getLogger(TraceStore.class);
+
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File directory;
+
+    private final int threshold;
+
+    private final Map<String, Boolean> stored = new ConcurrentHashMap<String, Boolean>();
+
+    private final AtomicLong spilledBytes = new AtomicLong();
+
+    private final AtomicLong writtenBytes = new AtomicLong();
+
+    /**
+     * Creates a new store with the default threshold.
+     * 
+     * @param directory
+     *            the directory of the store
+     * @throws IOException
+     *             thrown, if the directory cannot be created
+     */
+    public TraceStore(File directory) throws IOException {
+        this(directory, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Creates a new store.
+     * 
+     * @param directory
+     *            the directory of the store
+     * @param threshold
+     *            the payload size in bytes above which payloads are spilled
+     * @throws IOException
+     *             thrown, if the directory cannot be created
+     */
+    public TraceStore(File directory, int threshold) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create trace store " + directory);
+        }
+        this.directory = directory;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Spills the screenshot of the given trace, if it exceeds the threshold.
+     * 
+     * @param trace
+     *            the trace
+     * @return true, if the screenshot was replaced by a handle
+     * @throws IOException
+     *             thrown, if the payload cannot be written
+     */
+    public boolean spill(ScreenshotTrace trace) throws IOException {
+        byte[] payload = trace.getScreenshot();
+
+        if (!this.isSpillable(payload)) {
+            return false;
+        }
+        trace.setScreenshot(this.store(payload).toBytes());
+        return true;
+    }
+
+    /**
+     * Spills the file content of the given trace, if it exceeds the threshold.
+     * 
+     * @param trace
+     *            the trace
+     * @return true, if the file content was replaced by a handle
+     * @throws IOException
+     *             thrown, if the payload cannot be written
+     */
+    public boolean spill(FileTrace trace) throws IOException {
+        byte[] payload = trace.getFileContent();
+
+        if (!this.isSpillable(payload)) {
+            return false;
+        }
+        trace.setFileContent(this.store(payload).toBytes());
+        return true;
+    }
+
+    private boolean isSpillable(byte[] payload) {
+        return payload != null && payload.length > this.threshold && TraceHandle.valueOf(payload) == null;
+    }
+
+    /**
+     * Gets the screenshot of the given trace, loading it from disk if spilled. The trace is not
+     * modified.
+     * 
+     * @param trace
+     *            the trace
+     * @return the screenshot
+     * @throws IOException
+     *             thrown, if the payload cannot be read
+     */
+    public byte[] load(ScreenshotTrace trace) throws IOException {
+        return this.resolve(trace.getScreenshot());
+    }
+
+    /**
+     * Gets the file content of the given trace, loading it from disk if spilled. The trace is not
+     * modified.
+     * 
+     * @param trace
+     *            the trace
+     * @return the file content
+     * @throws IOException
+     *             thrown, if the payload cannot be read
+     */
+    public byte[] load(FileTrace trace) throws IOException {
+        return this.resolve(trace.getFileContent());
+    }
+
+    /**
+     * Puts a spilled screenshot back into the given trace, e.g. before sending it to a client
+     * without access to the store.
+     * 
+     * @param trace
+     *            the trace
+     * @throws IOException
+     *             thrown, if the payload cannot be read
+     */
+    public void restore(ScreenshotTrace trace) throws IOException {
+        trace.setScreenshot(this.load(trace));
+    }
+
+    /**
+     * Puts spilled file content back into the given trace.
+     * 
+     * @param trace
+     *            the trace
+     * @throws IOException
+     *             thrown, if the payload cannot be read
+     */
+    public void restore(FileTrace trace) throws IOException {
+        trace.setFileContent(this.load(trace));
+    }
+
+    private byte[] resolve(byte[] payload) throws IOException {
+        TraceHandle handle = TraceHandle.valueOf(payload);
+        return handle != null ? this.load(handle) : payload;
+    }
+
+    /**
+     * Stores the given payload, unless a payload with the same digest is already stored.
+     * 
+     * @param payload
+     *            the payload
+     * @return the handle of the payload
+     * @throws IOException
+     *             thrown, if the payload cannot be written
+     */
+    public TraceHandle store(byte[] payload) throws IOException {
+        TraceHandle handle = new TraceHandle(digest(payload), payload.length);
+        File file = this.getFile(handle);
+
+        this.spilledBytes.addAndGet(payload.length);
+
+        if (this.stored.containsKey(handle.getDigest()) || file.length() == payload.length) {
+            this.stored.put(handle.getDigest(), Boolean.TRUE);
+            return handle;
+        }
+
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Cannot create directory " + parent);
+        }
+
+        File tmp = new File(parent, file.getName() + '.' + Thread.currentThread().getId() + TMP_SUFFIX);
+        OutputStream out = new FileOutputStream(tmp);
+
+        try {
+            out.write(payload);
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+
+            if (file.length() != payload.length) {
+                throw new IOException("Cannot store trace payload " + file);
+            }
+        } else {
+            this.writtenBytes.addAndGet(payload.length);
+        }
+
+        this.stored.put(handle.getDigest(), Boolean.TRUE);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Stored trace payload " + handle);
+        }
+        return handle;
+    }
+
+    /**
+     * Loads the payload of the given handle.
+     * 
+     * @param handle
+     *            the handle
+     * @return the payload
+     * @throws IOException
+     *             thrown, if the payload cannot be read
+     */
+    public byte[] load(TraceHandle handle) throws IOException {
+        File file = this.getFile(handle);
+        byte[] data = new byte[(int) handle.getLength()];
+        InputStream in = new FileInputStream(file);
+
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int len = in.read(data, offset, data.length - offset);
+                if (len == -1) {
+                    throw new IOException("Trace payload " + file + " is truncated");
+                }
+                offset += len;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    /**
+     * Gets the number of payload bytes spilled to this store, including duplicates.
+     * 
+     * @return the spilled bytes
+     */
+    public long getSpilledBytes() {
+        return this.spilledBytes.get();
+    }
+
+    /**
+     * Gets the number of payload bytes actually written to disk.
+     * 
+     * @return the written bytes
+     */
+    public long getWrittenBytes() {
+        return this.writtenBytes.get();
+    }
+
+    /**
+     * Gets the directory of the store.
+     * 
+     * @return the directory
+     */
+    public File getDirectory() {
+        return this.directory;
+    }
+
+    private File getFile(TraceHandle handle) {
+        String digest = handle.getDigest();
+        return new File(new File(this.directory, digest.substring(0, 2)), digest.substring(2));
+    }
+
+    private static String digest(byte[] payload) {
+        try {
+            byte[] hash = MessageDigest.getInstance(DIGEST_ALGORITHM).digest(payload);
+            char[] chars = new char[hash.length * 2];
+
+            for (int i = 0; i < hash.length; i++) {
+                chars[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+                chars[i * 2 + 1] = HEX[hash[i] & 0xf];
+            }
+            return new String(chars);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " is not supported", e);
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2012 PRODYNA AG
+ *
+ * Licensed under the Eclipse Public License (EPL), Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/eclipse-1.0.php or
+ * http://www.nabucco.org/License.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nabucco.testautomation.engine.base.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * WeakIdentityKey
+ * 
+ * Map key holding its referent weakly and comparing it by identity. Keys of collected referents
+ * are enqueued in the given queue, so they can be removed from the map.
+ * 
+ * @author agent
+ */
+final class WeakIdentityKey extends WeakReference<Object> {
+
+    private final int hash;
+
+    /**
+     * Creates a key for lookups only.
+     * 
+     * @param referent
+     *            the referent
+     */
+    WeakIdentityKey(Object referent) {
+        this(referent, null);
+    }
+
+    /**
+     * Creates a key to be stored in a map.
+     * 
+     * @param referent
+     *            the referent
+     * @param queue
+     *            the queue to enqueue the key in, once the referent is collected
+     */
+    WeakIdentityKey(Object referent, ReferenceQueue<Object> queue) {
+        super(referent, queue);
+        this.hash = System.identityHashCode(referent);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof WeakIdentityKey)) {
+            return false;
+        }
+        Object referent = this.get();
+        return referent != null && referent == ((WeakIdentityKey) obj).get();
+    }
+
+}